@@ -0,0 +1,361 @@
+package CalcPVM;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+class MnemonicTable {
+  // Perfect hash of the mnemonics of PVM.mnemonics to their opcodes: a
+  // multiplier is searched for that sends every mnemonic to its own slot of
+  // a table at least twice their number, so a lookup hashes the name once,
+  // ignoring case, and compares it with the one entry in its slot.  Built by
+  // PVM.init, after any changes made to the mnemonics there
+
+  private final String[] names; // mnemonic in each slot, or null
+  private final int[] ops; // and its opcode
+  private final int multiplier, shift;
+
+  MnemonicTable(String[] mnemonics) {
+    int n = 0;
+    for (String m : mnemonics)
+      if (m != null && m.length() > 0)
+        n++;
+    for (int bits = 32 - Integer.numberOfLeadingZeros(Math.max(2 * n - 1, 1));; bits++) {
+      int size = 1 << bits;
+      String[] names = new String[size];
+      int[] ops = new int[size];
+      for (int k = 0; k < 4096; k++) {
+        int multiplier = 0x9e3779b9 + 2 * k, shift = 32 - bits;
+        Arrays.fill(names, null);
+        boolean perfect = true;
+        for (int op = 0; op < mnemonics.length && perfect; op++) {
+          String m = mnemonics[op];
+          if (m == null || m.length() == 0)
+            continue;
+          int slot = hash(m, multiplier, shift);
+          if (names[slot] != null && !names[slot].equals(m))
+            perfect = false;
+          else if (names[slot] == null) {
+            names[slot] = m;
+            ops[slot] = op;
+          }
+        }
+        if (perfect) {
+          this.names = names;
+          this.ops = ops;
+          this.multiplier = multiplier;
+          this.shift = shift;
+          return;
+        }
+      }
+    }
+  }
+
+  private static int upper(int c) {
+    return c >= 'a' && c <= 'z' ? c - 'a' + 'A' : c;
+  }
+
+  private static int hash(CharSequence s, int multiplier, int shift) {
+    int h = 0;
+    for (int i = 0; i < s.length(); i++)
+      h = 31 * h + upper(s.charAt(i));
+    return h * multiplier >>> shift;
+  }
+
+  public int opcode(CharSequence s) {
+    // Returns the opcode whose mnemonic is s in any case, or -1
+    int slot = hash(s, multiplier, shift);
+    String m = names[slot];
+    if (m == null || m.length() != s.length())
+      return -1;
+    for (int i = 0; i < m.length(); i++)
+      if (upper(s.charAt(i)) != m.charAt(i))
+        return -1;
+    return ops[slot];
+  }
+
+  public int opcode(byte[] b, int from, int to) {
+    // As above for the ASCII characters b[from .. to-1]
+    int h = 0;
+    for (int i = from; i < to; i++)
+      h = 31 * h + upper(b[i]);
+    int slot = h * multiplier >>> shift;
+    String m = names[slot];
+    if (m == null || m.length() != to - from)
+      return -1;
+    for (int i = from; i < to; i++)
+      if (upper(b[i]) != m.charAt(i - from))
+        return -1;
+    return ops[slot];
+  }
+
+} // end MnemonicTable
+
+class Assembler {
+  // Assembles PVM assembly, such as the listings written by PVM.listCode or
+  // code written by hand or by other tools, into a CodeImage:
+  //
+  //   ASSEM                     optional heading, as listCode writes
+  //   BEGIN
+  //     {   12 } LDC 7          optional { pc } from a listing, ignored
+  //     loop: LDL 0             label: names the next instruction
+  //     BZE done                operand: integer or label
+  //     PRNS "a \"string\"\n"   literal with listCode's escapes, in UTF-8
+  //     57                      a word that is not an instruction
+  //     ...                     ; to the end of the line is a comment
+  //   END.
+  //
+  // The file is read whole and scanned as bytes, with mnemonics looked up in
+  // PVM's MnemonicTable.  Labels may be used before they are defined.  The
+  // image's LineTable refers to the lines of the assembly file, so that
+  // post-mortem reports, the debugger and the profilers show them.  Errors
+  // are reported by an IOException naming the file and line
+
+  private final String fileName;
+  private final byte[] b;
+  private int at = 0, line = 1;
+  private int[] code = new int[1024], literals = new int[256];
+  private int codeTop = 0, litTop = 0;
+  private final HashMap<String, Integer> labels = new HashMap<String, Integer>();
+  private final ArrayList<Object[]> fixups = new ArrayList<Object[]>(); // {pc of operand, label, line}
+  private final LineTable lines;
+
+  private Assembler(String fileName, byte[] b) {
+    this.fileName = fileName;
+    this.b = b;
+    lines = new LineTable(fileName);
+  }
+
+  public static CodeImage assemble(String fileName) throws IOException {
+    // Returns the image assembled from fileName
+    try {
+      return new Assembler(fileName, Files.readAllBytes(Paths.get(fileName))).assemble();
+    } catch (InvalidPathException e) {
+      throw new IOException(e.getMessage());
+    }
+  }
+
+  private IOException error(String message) {
+    return new IOException(fileName + ":" + line + ": " + message);
+  }
+
+  private void emit(int word) {
+    if (codeTop == code.length)
+      code = Arrays.copyOf(code, 2 * codeTop);
+    code[codeTop++] = word;
+  }
+
+  private void literal(int c) {
+    if (litTop == literals.length)
+      literals = Arrays.copyOf(literals, 2 * litTop);
+    literals[litTop++] = c;
+  }
+
+  private int peek() {
+    return at < b.length ? b[at] & 0xff : -1;
+  }
+
+  private void skipBlanks() {
+    // Skips spaces, tabs and comments, but not the end of a line
+    while (true) {
+      int c = peek();
+      if (c == ' ' || c == '\t' || c == '\r')
+        at++;
+      else if (c == ';')
+        while (peek() >= 0 && peek() != '\n')
+          at++;
+      else
+        return;
+    }
+  }
+
+  private static boolean isWordChar(int c) {
+    return c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '_' || c == '.';
+  }
+
+  private int word() {
+    // Moves past a word (letters, digits, '_' and '.'); returns its start
+    int start = at;
+    while (isWordChar(peek()))
+      at++;
+    return start;
+  }
+
+  private boolean is(int start, String s) {
+    // True if the word from start to at is s, in any case
+    if (at - start != s.length())
+      return false;
+    for (int i = 0; i < s.length(); i++)
+      if (Character.toUpperCase(b[start + i]) != s.charAt(i))
+        return false;
+    return true;
+  }
+
+  private int number(int start) throws IOException {
+    // Returns the integer from start to at
+    long v = 0;
+    int i = start;
+    boolean negative = b[i] == '-';
+    if (b[i] == '-' || b[i] == '+')
+      i++;
+    if (i == at)
+      throw error("number expected");
+    for (; i < at; i++) {
+      if (b[i] < '0' || b[i] > '9')
+        throw error("bad number " + new String(b, start, at - start, StandardCharsets.ISO_8859_1));
+      v = 10 * v + b[i] - '0';
+      if (v > 1L << 31)
+        throw error("number too large");
+    }
+    v = negative ? -v : v;
+    if (v > Integer.MAX_VALUE)
+      throw error("number too large");
+    return (int) v;
+  }
+
+  private int continuation() throws IOException {
+    // Returns the low 6 bits of the continuation byte of a UTF-8 sequence at at
+    int c = peek();
+    if ((c & 0xc0) != 0x80)
+      throw error("bad UTF-8 in string");
+    at++;
+    return c & 0x3f;
+  }
+
+  private int string() throws IOException {
+    // Reads a quoted literal into the literal segment, a char in each word;
+    // returns its start
+    int first = litTop;
+    at++; // opening quote
+    while (true) {
+      int c = peek();
+      if (c < 0 || c == '\n')
+        throw error("unterminated string");
+      at++;
+      if (c == '"')
+        break;
+      if (c >= 0xf0 && c < 0xf8) { // beyond the BMP, as a surrogate pair
+        c = (c & 0x07) << 18 | continuation() << 12 | continuation() << 6 | continuation();
+        literal(Character.highSurrogate(c));
+        c = Character.lowSurrogate(c);
+      } else if (c >= 0xe0)
+        c = (c & 0x0f) << 12 | continuation() << 6 | continuation();
+      else if (c >= 0xc0)
+        c = (c & 0x1f) << 6 | continuation();
+      else if (c >= 0x80)
+        throw error("bad UTF-8 in string");
+      else if (c == '\\') {
+        c = peek();
+        at++;
+        switch (c) {
+          case 'b':
+            c = '\b';
+            break;
+          case 't':
+            c = '\t';
+            break;
+          case 'n':
+            c = '\n';
+            break;
+          case 'f':
+            c = '\f';
+            break;
+          case 'r':
+            c = '\r';
+            break;
+          case '\\':
+          case '"':
+          case '\'':
+            break;
+          default:
+            throw error("bad escape in string");
+        }
+      }
+      literal(c);
+    }
+    literal(0);
+    return first;
+  }
+
+  private CodeImage assemble() throws IOException {
+    MnemonicTable table = PVM.mnemonicTable();
+    boolean ended = false;
+    while (at < b.length && !ended) {
+      skipBlanks();
+      if (peek() == '{') { // pc from a listing
+        while (peek() >= 0 && peek() != '}' && peek() != '\n')
+          at++;
+        if (peek() != '}')
+          throw error("} expected");
+        at++;
+        skipBlanks();
+      }
+      if (peek() == '-' || peek() == '+' || peek() >= '0' && peek() <= '9') { // a word as it is
+        int from = at++;
+        word();
+        lines.add(codeTop, line, 1);
+        emit(number(from));
+      }
+      int start = word();
+      if (at > start && peek() == ':') { // label
+        String label = new String(b, start, at - start, StandardCharsets.ISO_8859_1);
+        if (labels.put(label, codeTop) != null)
+          throw error("label " + label + " defined twice");
+        at++;
+        skipBlanks();
+        start = word();
+      }
+      if (at > start) {
+        if (is(start, "ASSEM") || is(start, "BEGIN"))
+          ;
+        else if (is(start, "END.") || is(start, "END"))
+          ended = true;
+        else {
+          int op = table.opcode(b, start, at);
+          if (op < 0)
+            throw error("unknown mnemonic " + new String(b, start, at - start, StandardCharsets.ISO_8859_1));
+          lines.add(codeTop, line, 1);
+          emit(op);
+          if (PVMJit.length(op) == 2) {
+            skipBlanks();
+            if (op == PVM.prns && peek() == '"')
+              emit(string());
+            else {
+              int c = peek();
+              start = at;
+              if (c == '-' || c == '+')
+                at++;
+              word();
+              if (at == start)
+                throw error("operand expected");
+              if (c == '-' || c == '+' || c >= '0' && c <= '9')
+                emit(number(start));
+              else {
+                fixups.add(new Object[] { codeTop, new String(b, start, at - start, StandardCharsets.ISO_8859_1), line });
+                emit(0);
+              }
+            }
+          }
+        }
+      }
+      skipBlanks();
+      if (peek() >= 0 && peek() != '\n')
+        throw error("unexpected " + (char) peek());
+      if (peek() == '\n') {
+        at++;
+        line++;
+      }
+    }
+    for (Object[] f : fixups) {
+      Integer target = labels.get(f[1]);
+      if (target == null) {
+        line = (Integer) f[2];
+        throw error("undefined label " + f[1]);
+      }
+      code[(Integer) f[0]] = target;
+    }
+    return new CodeImage(code, codeTop, literals, litTop, lines);
+  }
+
+} // end Assembler
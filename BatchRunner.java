@@ -0,0 +1,158 @@
+package CalcPVM;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import library.*;
+
+class BatchRunner {
+  // Runs one code image against many data files without any prompting.  Each
+  // worker thread keeps a single VirtualMachine, whose memory is reloaded from
+  // the image (or a snapshot) for every run, and the results of data file F
+  // go to F.out.  Input logs among the data files are replayed, and when
+  // input is logged, that of F goes to F.inlog
+
+  static final String resultsExt = ".out";
+  static final int openFailed = -2; // status of a run whose files could not be opened
+
+  public static List<String> dataFiles(String source) {
+    // Returns the data files named by source: every file of a directory
+    // (other than earlier results and input logs), or every line of a manifest file that is
+    // neither blank nor a # comment, relative to the manifest's directory
+    ArrayList<String> files = new ArrayList<String>();
+    File from = new File(source);
+    if (from.isDirectory()) {
+      File[] list = from.listFiles();
+      if (list != null)
+        for (File f : list)
+          if (f.isFile() && !f.getName().endsWith(resultsExt) && !f.getName().endsWith(InputLog.ext))
+            files.add(f.getPath());
+      Collections.sort(files);
+    } else
+      try (BufferedReader manifest = new BufferedReader(new FileReader(from))) {
+        String line;
+        while ((line = manifest.readLine()) != null) {
+          line = line.trim();
+          if (line.length() == 0 || line.startsWith("#"))
+            continue;
+          File f = new File(line);
+          files.add(f.isAbsolute() ? line : new File(from.getAbsoluteFile().getParentFile(), line).getPath());
+        }
+      } catch (IOException e) {
+        System.err.println("Could not read manifest " + source + ": " + e.getMessage());
+      }
+    return files;
+  }
+
+  public static int run(CodeImage image, List<String> files, int threads) {
+    return run(image, null, files, threads);
+  }
+
+  public static int run(CodeImage image, Snapshot from, List<String> files, int threads) {
+    // Runs image once per data file on threads workers, each run resuming
+    // from the snapshot if from is not null, prints a report grouped by
+    // final status and returns the number of unsuccessful runs
+    int n = files.size();
+    int[] status = new int[n], pcAt = new int[n];
+    long[] ops = new long[n];
+    RuntimeException[] errors = new RuntimeException[n]; // thrown by the interpreter, if any
+    AtomicInteger next = new AtomicInteger(0);
+    long start = System.nanoTime();
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    ArrayList<Future<?>> workers = new ArrayList<Future<?>>();
+    for (int t = 0; t < threads; t++) {
+      String memoryFile = PVM.memoryFile == null ? null : PVM.memoryFile + "." + t; // one per worker
+      workers.add(pool.submit(() -> {
+        VirtualMachine vm = new VirtualMachine(image, PVM.stackSize, PVM.heapSize, PVM.maxMemory,
+            PVM.offHeap, memoryFile);
+        vm.profileName = null; // profiles are written for single runs only
+        vm.sampleName = null;
+        vm.traceName = null;
+        vm.traceIf = null;
+        vm.breakpoints = null;
+        vm.snapshotName = null;
+        int i;
+        while ((i = next.getAndIncrement()) < n) {
+          String name = files.get(i);
+          InFile data = InputLog.open(name, PVM.readAhead);
+          if (PVM.inputLogName != null && !(data instanceof InputReplay) && !data.openError())
+            data = new InputRecorder(data, name + InputLog.ext);
+          OutFile results = data.openError() ? null : new ResultsSink(name + resultsExt, PVM.asyncResults);
+          if (results == null || results.openError()) {
+            if (results != null)
+              System.err.println("Could not open results file " + name + resultsExt);
+            else if (data instanceof InputRecorder)
+              System.err.println("Could not open input log " + name + InputLog.ext);
+            else
+              System.err.println("Could not open data file " + name);
+            status[i] = openFailed;
+            if (results != null)
+              results.close();
+            data.close();
+            continue;
+          }
+          try {
+            if (from != null)
+              vm.restore(from);
+            vm.execute(0, data, results, false, false, false);
+            status[i] = vm.ps;
+            if (vm.ps != PVM.finished)
+              vm.postMortem(results, vm.pcNow);
+          } catch (RuntimeException e) {
+            status[i] = -1; // interpreter error
+            errors[i] = e;
+            PVMRuntime.postMortem(results, status[i], vm.pcNow,
+                (image.lines == null ? "" : image.lines.position(vm.pcNow)) + ": " + e);
+          }
+          pcAt[i] = vm.pcNow;
+          ops[i] = vm.ops;
+          results.close();
+          data.close();
+        }
+        vm.close();
+      }));
+    }
+    pool.shutdown();
+    for (Future<?> w : workers)
+      try {
+        w.get();
+      } catch (InterruptedException | ExecutionException e) {
+        System.err.println("Batch worker failed: " + e);
+      }
+    long elapsed = (System.nanoTime() - start) / 1000000;
+    return report(files, status, pcAt, ops, errors, threads, elapsed);
+  }
+
+  static int report(List<String> files, int[] status, int[] pcAt, long[] ops, RuntimeException[] errors,
+      int threads, long elapsed) {
+    // Prints totals for each final status with its first few files, and the
+    // exception of any that stopped the interpreter; returns the number of
+    // runs that did not finish normally
+    TreeMap<Integer, ArrayList<Integer>> byStatus = new TreeMap<Integer, ArrayList<Integer>>();
+    long totalOps = 0;
+    for (int i = 0; i < status.length; i++) {
+      byStatus.computeIfAbsent(status[i], k -> new ArrayList<Integer>()).add(i);
+      totalOps += ops[i];
+    }
+    System.out.println("\nBatch of " + status.length + " runs on " + threads + " threads in "
+        + elapsed + " ms, " + totalOps + " operations");
+    int failures = 0;
+    for (Map.Entry<Integer, ArrayList<Integer>> e : byStatus.entrySet()) {
+      ArrayList<Integer> runs = e.getValue();
+      System.out.printf("  %-24s %6d%n", e.getKey() == openFailed ? "Could not open files" : PVMRuntime.message(e.getKey()),
+          runs.size());
+      if (e.getKey() != PVM.finished) {
+        failures += runs.size();
+        for (int k = 0; k < runs.size() && k < 5; k++)
+          System.out.println("      " + files.get(runs.get(k))
+              + (e.getKey() == openFailed ? "" : " at " + pcAt[runs.get(k)])
+              + (errors[runs.get(k)] == null ? "" : ": " + errors[runs.get(k)]));
+        if (runs.size() > 5)
+          System.out.println("      ...");
+      }
+    }
+    return failures;
+  }
+
+} // end BatchRunner
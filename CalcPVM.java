@@ -1,6 +1,8 @@
 package CalcPVM;
 
 import java.io.*;
+import java.nio.file.*;
+import java.util.*;
 import library.*;
 
 public class CalcPVM {
@@ -13,16 +15,164 @@ public class CalcPVM {
       return s.substring(0, i) + ext;
   }
 
+  private static void setTiers(String limits) {
+    // Enables tiered execution with optional limits given as n[,m]
+    PVM.tiered = true;
+    if (limits.length() == 0)
+      return;
+    String[] parts = limits.split(",");
+    try {
+      PVM.backEdgeLimit = Integer.parseInt(parts[0]);
+      PVM.blockLimit = parts.length > 1 ? Integer.parseInt(parts[1]) : 10 * PVM.backEdgeLimit;
+    } catch (NumberFormatException e) {
+      System.err.println("Bad tier limits " + limits + " - using defaults");
+    }
+  }
+
+  private static void setMemory(String sizes) {
+    // Sets the memory layout from sizes given as s[,h[,m]]
+    String[] parts = sizes.split(",");
+    try {
+      PVM.stackSize = Integer.parseInt(parts[0]);
+      if (parts.length > 1)
+        PVM.heapSize = Integer.parseInt(parts[1]);
+      if (parts.length > 2)
+        PVM.maxMemory = Integer.parseInt(parts[2]);
+    } catch (NumberFormatException e) {
+      System.err.println("Bad memory sizes " + sizes + " - using defaults");
+    }
+  }
+
+  private static int runOnce(CodeImage image, Snapshot from, String dataName, String resultsName,
+      boolean tracing, boolean traceStack) {
+    // Runs image once without any prompting, resuming from a snapshot if from
+    // is not null, and returns the exit status: 0 if it finished, 1 if a file
+    // could not be opened or the snapshot restored, otherwise its status
+    InFile data = InputLog.open(dataName, PVM.readAhead);
+    if (data.openError()) {
+      System.err.println("Could not open data file " + dataName);
+      return 1;
+    }
+    if (PVM.inputLogName != null) {
+      data = new InputRecorder(data, PVM.inputLogName);
+      if (data.openError()) {
+        System.err.println("Could not open input log " + PVM.inputLogName);
+        return 1;
+      }
+    }
+    OutFile results = new ResultsSink(resultsName, PVM.asyncResults);
+    if (results.openError()) {
+      System.err.println("Could not open results file " + resultsName);
+      return 1;
+    }
+    VirtualMachine vm = new VirtualMachine(image);
+    if (from != null)
+      try {
+        vm.restore(from);
+      } catch (IllegalArgumentException e) {
+        System.err.println("Could not restore snapshot: " + e.getMessage());
+        return 1;
+      }
+    int ps = vm.run(0, data, results, tracing, traceStack, false);
+    if (data instanceof InputReplay && ((InputReplay) data).diverged() > 0)
+      System.err.println("Replay diverged from the log at read " + ((InputReplay) data).diverged());
+    results.close();
+    data.close();
+    return ps == PVM.finished ? 0 : ps;
+  }
+
   public static void main(String[] args) {
     boolean mergeErrors = false;
+    boolean aheadOfTime = false, writeObject = false;
+    boolean profile = false, sample = false;
+    String batchSource = null;
     String inputName = null;
+    boolean run = false, tracing = false, traceStack = false;
+    String dataName = "", resultsName = "";
+    String restoreName = null;
 
     // ------------------------- process command line parameters:
 
     System.out.println("Calculator compiler 1.00");
 
     for (int i = 0; i < args.length; i++) {
-      if (args[i].toLowerCase().equals("-l"))
+      if (args[i].equals("--run"))
+        run = true;
+      else if (args[i].equals("--data") && i + 1 < args.length) {
+        run = true;
+        dataName = args[++i];
+      } else if (args[i].equals("--out") && i + 1 < args.length) {
+        run = true;
+        resultsName = args[++i];
+      } else if (args[i].equals("--trace")) {
+        run = true;
+        tracing = true;
+      } else if (args[i].equals("--trace-stack")) {
+        run = true;
+        tracing = true;
+        traceStack = true;
+      } else if (args[i].equals("--debug")) {
+        run = true;
+        if (PVM.breakpoints == null)
+          PVM.breakpoints = "";
+      } else if (args[i].equals("--break") && i + 1 < args.length) {
+        run = true;
+        PVM.breakpoints = PVM.breakpoints == null || PVM.breakpoints.isEmpty() ? args[++i]
+            : PVM.breakpoints + "," + args[++i];
+      } else if (args[i].equals("--record") && i + 1 < args.length) {
+        run = true;
+        PVM.inputLogName = args[++i];
+      } else if (args[i].equals("--replay") && i + 1 < args.length) {
+        run = true;
+        dataName = args[++i];
+        if (!InputLog.isLog(dataName)) {
+          System.err.println(dataName + " is not an input log");
+          System.exit(1);
+        }
+      } else if (args[i].equals("--save-snapshot") && i + 1 < args.length) {
+        run = true;
+        PVM.snapshotName = args[++i];
+      } else if (args[i].equals("--snapshot-at") && i + 1 < args.length) {
+        run = true;
+        PVM.snapshotAt = args[++i];
+      } else if (args[i].equals("--restore") && i + 1 < args.length) {
+        run = true;
+        restoreName = args[++i];
+      } else if (args[i].equals("--trace-file") && i + 1 < args.length) {
+        run = true;
+        PVM.traceName = args[++i];
+      } else if (args[i].equals("--trace-if") && i + 1 < args.length) {
+        run = true;
+        PVM.traceIf = args[++i]; // checked once the mnemonics are set
+      } else if (args[i].equals("--trace-records") && i + 1 < args.length) {
+        run = true;
+        try {
+          PVM.traceRecords = Integer.parseInt(args[++i]);
+        } catch (NumberFormatException e) {
+          System.err.println("Bad trace size " + args[i] + " - ignored");
+        }
+      } else if (args[i].equals("--max-steps") && i + 1 < args.length) {
+        run = true;
+        try {
+          PVM.maxSteps = Long.parseLong(args[++i]);
+        } catch (NumberFormatException e) {
+          System.err.println("Bad step limit " + args[i] + " - ignored");
+        }
+      } else if (args[i].equals("--time-limit") && i + 1 < args.length) {
+        run = true;
+        try {
+          PVM.timeLimit = Integer.parseInt(args[++i]);
+        } catch (NumberFormatException e) {
+          System.err.println("Bad time limit " + args[i] + " - ignored");
+        }
+      } else if (args[i].equals("--max-heap") && i + 1 < args.length) {
+        run = true;
+        try {
+          PVM.maxHeap = Integer.parseInt(args[++i]);
+        } catch (NumberFormatException e) {
+          System.err.println("Bad heap limit " + args[i] + " - ignored");
+        }
+      } else if (args[i].toLowerCase().equals("-l"))
         mergeErrors = true;
       else if (args[i].toLowerCase().equals("-d"))
         Parser.debug = true;
@@ -30,54 +180,225 @@ public class CalcPVM {
         Parser.warnings = false;
       else if (args[i].toLowerCase().equals("-c"))
         Parser.listCode = true;
+      else if (args[i].toLowerCase().equals("-j"))
+        PVM.useJit = true;
+      else if (args[i].toLowerCase().equals("-a"))
+        aheadOfTime = true;
+      else if (args[i].toLowerCase().equals("-x"))
+        writeObject = true;
+      else if (args[i].toLowerCase().equals("-z"))
+        PVM.compactCode = true;
+      else if (args[i].toLowerCase().startsWith("-t"))
+        setTiers(args[i].substring(2));
+      else if (args[i].toLowerCase().startsWith("-m"))
+        setMemory(args[i].substring(2));
+      else if (args[i].toLowerCase().equals("-r"))
+        PVM.readAhead = true;
+      else if (args[i].toLowerCase().equals("-q"))
+        PVM.asyncResults = true;
+      else if (args[i].toLowerCase().equals("-p"))
+        profile = true;
+      else if (args[i].toLowerCase().startsWith("-s")) {
+        sample = true;
+        if (args[i].length() > 2)
+          try {
+            PVM.sampleInterval = Integer.parseInt(args[i].substring(2));
+          } catch (NumberFormatException e) {
+            System.err.println("Bad sampling interval " + args[i] + " - ignored");
+          }
+      } else if (args[i].toLowerCase().equals("-f"))
+        PVM.freeList = true;
+      else if (args[i].toLowerCase().equals("-fd")) {
+        PVM.freeList = true;
+        PVM.checkFreed = true;
+      } else if (args[i].toLowerCase().startsWith("-o")) {
+        PVM.offHeap = true;
+        if (args[i].length() > 2)
+          PVM.memoryFile = args[i].substring(2);
+      } else if (args[i].toLowerCase().equals("-b") && i + 1 < args.length)
+        batchSource = args[++i];
       else
         inputName = args[i];
     }
     if (inputName == null) {
       System.err.println("No input file specified");
-      System.err.println("Usage: CalcPVM [-l] [-d] [-w] [-c] source");
+      System.err.println("Usage: CalcPVM [-l] [-d] [-w] [-c] [-j] [-t[n[,m]]] [-ms[,h[,m]]] [-o[file]] [-f[d]] [-r] [-q]");
+      System.err.println("              [-p] [-s[n]] [-a] [-x] [-z] [-b data]");
+      System.err.println("              [--run] [--data file] [--out file] [--trace] [--trace-stack]");
+      System.err.println("              [--record log] [--replay log]");
+      System.err.println("              [--trace-file file] [--trace-records n] [--trace-if filter]");
+      System.err.println("              [--debug] [--break pc|:line,...]");
+      System.err.println("              [--save-snapshot file] [--snapshot-at pc|:line] [--restore file]");
+      System.err.println("              [--max-steps n] [--time-limit ms] [--max-heap words] source|object|listing");
       System.err.println("-l directs source listing to listing.txt");
       System.err.println("-d turns on debug mode");
       System.err.println("-w suppresses warnings");
       System.err.println("-c lists object code (.cod file)");
+      System.err.println("-j translates code to JVM bytecode before running");
+      System.err.println("-t interprets, translating once a loop is taken n times (default 1000)");
+      System.err.println("   or a branch target is reached m times (default 10n)");
+      System.err.println("-m sets words of stack (default 5120), initial heap (4096)");
+      System.err.println("   and limit on stack and heap together (16777216)");
+      System.err.println("-o holds stack and heap off the Java heap, mapped to file if given");
+      System.err.println("-f manages the heap with FREE and free lists instead of garbage collection");
+      System.err.println("   (-fd also checks for use of freed arrays)");
+      System.err.println("-r reads data files ahead on a background thread");
+      System.err.println("-q writes results on a background thread");
+      System.err.println("-p profiles interpreted runs, writing counts per opcode, pc and basic");
+      System.err.println("   block to a .prof file and flame graph stacks to a .folded file");
+      System.err.println("-s samples interpreted runs every n us (default 1000), writing the");
+      System.err.println("   time spent on each source line to a .samples file");
+      System.err.println("-a writes a standalone executable program (.jar file)");
+      System.err.println("-x writes the compiled code to a .pvo object file, which may be given");
+      System.err.println("   in place of the source to run it without compiling again");
+      System.err.println("A .cod listing given in place of the source is assembled and run");
+      System.err.println("-z interprets code encoded in bytes rather than words, and writes it");
+      System.err.println("   that way with -x");
+      System.err.println("-b runs once per file of directory or manifest data, in parallel,");
+      System.err.println("   writing results for each file F to F.out");
+      System.err.println("--run runs the program once without prompting, reading --data file and");
+      System.err.println("   writing --out file (default the console), tracing if asked to, and");
+      System.err.println("   stopping once it passes --max-steps operations, --time-limit ms or");
+      System.err.println("   --max-heap words of heap; the exit status is 0 if the program");
+      System.err.println("   finished, or the PVM status it stopped with.  Any of these options");
+      System.err.println("   implies --run");
+      System.err.println("--record logs the values INPI and INPB read to a compact binary file,");
+      System.err.println("   which --replay (or --data, or a -b data file) reads back in place of");
+      System.err.println("   the data; with -b, the input from file F is logged to F.inlog");
+      System.err.println("--trace-file records the last --trace-records instructions (default");
+      System.err.println("   1048576) in a binary ring file, which TraceDecoder renders as text");
+      System.err.println("--trace-if traces only the instructions selected by a filter such as");
+      System.err.println("   pc=10..40,op=LDXA|STO,sp<100,hp>5000,after=1000000,every=10");
+      System.err.println("--debug runs under the debugger, stopping at the first instruction, or");
+      System.err.println("   at the instructions or source lines given by --break");
+      System.err.println("--save-snapshot saves the run, when it reaches --snapshot-at or else");
+      System.err.println("   when --max-steps or --time-limit stops it, to a file from which");
+      System.err.println("   --restore resumes it, with the same or other --data and --out, or");
+      System.err.println("   once per file with -b");
       System.exit(1);
     }
 
-    // ------------------------ parser and scanner initialization
+    boolean assembledOK;
+    CodeImage image;
+    if (inputName.endsWith(ObjectFile.ext)) {
+
+      // ------------------------ loading compiled code
 
-    int pos = inputName.lastIndexOf('/');
-    if (pos < 0)
-      pos = inputName.lastIndexOf('\\');
-    String dir = inputName.substring(0, pos + 1);
+      PVM.init();
+      try {
+        ObjectFile object = ObjectFile.load(inputName);
+        image = object.image;
+        PVM.stackSize = object.stackSize; // as compiled for
+        assembledOK = true;
+      } catch (IOException e) {
+        System.err.println("Could not load " + inputName + ": " + e.getMessage());
+        System.exit(1);
+        return;
+      }
+    } else if (inputName.endsWith(".cod")) {
 
-    Scanner.Init(inputName);
-    Errors.Init(inputName, dir, mergeErrors);
-    PVM.init();
-    // Table.init();
+      // ------------------------ assembling a listing
+
+      PVM.init();
+      try {
+        image = Assembler.assemble(inputName);
+        assembledOK = true;
+      } catch (IOException e) {
+        System.err.println("Could not assemble " + e.getMessage());
+        System.exit(1);
+        return;
+      }
+    } else {
 
-    // ------------------------ compilation
+      // ------------------------ parser and scanner initialization
 
-    Parser.Parse();
-    Errors.Summarize();
+      int pos = inputName.lastIndexOf('/');
+      if (pos < 0)
+        pos = inputName.lastIndexOf('\\');
+      String dir = inputName.substring(0, pos + 1);
+
+      Scanner.Init(inputName);
+      Errors.Init(inputName, dir, mergeErrors);
+      PVM.init();
+      // Table.init();
+
+      // ------------------------ compilation
+
+      Parser.Parse();
+      Errors.Summarize();
+      assembledOK = Parser.Successful();
+      image = CodeGen.getImage();
+    }
 
     // ------------------------ interpretation
 
-    boolean assembledOK = Parser.Successful();
-    int initSP = CodeGen.getInitSP();
+    if (PVM.traceIf != null)
+      try {
+        new TraceFilter(PVM.traceIf);
+      } catch (IllegalArgumentException e) {
+        System.err.println("Bad trace filter " + PVM.traceIf + ": " + e.getMessage() + " - ignored");
+        PVM.traceIf = null;
+      }
+    if (PVM.traceIf != null && PVM.traceName == null)
+      tracing = true; // a filter alone traces as text
     String codeName = newFileName(inputName, ".cod");
-    int codeLength = CodeGen.getCodeLength();
-    if (Parser.listCode)
-      PVM.listCode(codeName, codeLength);
+    if (profile)
+      PVM.profileName = newFileName(inputName, "");
+    if (sample)
+      PVM.sampleName = newFileName(inputName, "");
+    int codeLength = image.codeLen;
+    if (Parser.listCode && !inputName.endsWith(".cod"))
+      PVM.listCode(codeName, image);
     if (!assembledOK || codeLength == 0) {
       System.err.println("Unable to interpret code");
       System.exit(1);
     } else {
+      if (writeObject && !inputName.endsWith(ObjectFile.ext)) {
+        String objectName = newFileName(inputName, ObjectFile.ext);
+        try {
+          ObjectFile.write(objectName, image, PVM.stackSize, PVM.compactCode);
+          System.err.println("Object code written to " + objectName);
+        } catch (IOException | InvalidPathException e) {
+          System.err.println("Unable to write object code to " + objectName + ": " + e.getMessage());
+        }
+      }
+      if (aheadOfTime) {
+        String jarName = newFileName(inputName, ".jar");
+        if (PVMJit.writeJar(jarName, image))
+          System.err.println("Standalone program written to " + jarName);
+        else
+          System.err.println("Unable to compile code to " + jarName);
+      }
+      Snapshot from = null;
+      if (restoreName != null)
+        try {
+          from = Snapshot.read(restoreName);
+          if (!from.fits(image, PVM.stackSize)) {
+            System.err.println("Snapshot " + restoreName + " is of another program or stack size");
+            System.exit(1);
+          }
+        } catch (IOException e) {
+          System.err.println("Could not read snapshot " + restoreName + ": " + e.getMessage());
+          System.exit(1);
+        }
+      if (batchSource != null) {
+        List<String> files = BatchRunner.dataFiles(batchSource);
+        if (files.isEmpty()) {
+          System.err.println("No data files found in " + batchSource);
+          System.exit(1);
+        }
+        int failures = BatchRunner.run(image, from, files, Runtime.getRuntime().availableProcessors());
+        System.exit(failures == 0 ? 0 : 1);
+      }
+      if (run) {
+        System.exit(runOnce(image, from, dataName, resultsName, tracing, traceStack));
+      }
       char reply = 'n';
       do {
         System.err.print("\n\nInterpret [y/N]? ");
         reply = (InFile.StdIn.readLine() + " ").toUpperCase().charAt(0);
         if (reply == 'Y')
-          PVM.interpret(codeLength, initSP);
+          PVM.interpret(image);
       } while (reply == 'Y');
     }
   }
@@ -1,5 +1,7 @@
 package CalcPVM;
 
+import java.io.*;
+import java.nio.file.*;
 import java.util.*;
 
 class Label {
@@ -47,9 +49,139 @@ class Label {
 
 } // end Label
 
+class LineTable {
+  // Source position of each instruction, kept as runs: the instructions from
+  // start[i] up to start[i+1]-1 were generated at line[i], col[i] of the
+  // source file.  Positions are those of the last token parsed when each word
+  // was emitted, so an instruction is placed at or just after the source text
+  // it comes from
+
+  public final String sourceName; // file the positions refer to
+  private int[] start = new int[64], line = new int[64], col = new int[64];
+  private int runs = 0;
+  private List<String> source; // its lines, once read
+
+  public LineTable(String sourceName) {
+    this.sourceName = sourceName;
+  }
+
+  void add(int pc, int ln, int cl) {
+    // Records that the word at pc (the next one emitted) comes from ln, cl
+    if (runs > 0 && line[runs - 1] == ln && col[runs - 1] == cl)
+      return;
+    if (runs > 0 && start[runs - 1] == pc)
+      runs--; // nothing was emitted at the previous position
+    if (runs == start.length) {
+      start = Arrays.copyOf(start, 2 * runs);
+      line = Arrays.copyOf(line, 2 * runs);
+      col = Arrays.copyOf(col, 2 * runs);
+    }
+    start[runs] = pc;
+    line[runs] = ln;
+    col[runs] = cl;
+    runs++;
+  }
+
+  private int find(int pc) {
+    // Returns the run holding pc, or -1 if it precedes them all
+    int lo = 0, hi = runs - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (start[mid] <= pc)
+        lo = mid + 1;
+      else
+        hi = mid - 1;
+    }
+    return hi;
+  }
+
+  public int line(int pc) {
+    // Returns the source line of the instruction at pc, or 0 if unknown
+    int r = find(pc);
+    return r < 0 ? 0 : line[r];
+  }
+
+  public int col(int pc) {
+    int r = find(pc);
+    return r < 0 ? 0 : col[r];
+  }
+
+  public int firstPC(int ln) {
+    // Returns the first pc generated at source line ln, or -1 if there is none
+    for (int r = 0; r < runs; r++)
+      if (line[r] == ln)
+        return start[r];
+    return -1;
+  }
+
+  public synchronized List<String> source() {
+    // Returns the lines of the source file, or none if it cannot be read
+    if (source == null)
+      try {
+        source = Files.readAllLines(Paths.get(sourceName));
+      } catch (IOException | RuntimeException e) {
+        source = Collections.emptyList();
+      }
+    return source;
+  }
+
+  public String text(int ln) {
+    // Returns source line ln, trimmed, or "" if it is not known
+    List<String> lines = source();
+    return ln >= 1 && ln <= lines.size() ? lines.get(ln - 1).trim() : "";
+  }
+
+  public String position(int pc) {
+    // Describes the source position of pc for messages, or returns ""
+    int r = find(pc);
+    return r < 0 ? "" : " (line " + line[r] + ", col " + col[r] + ")";
+  }
+
+  int[] runs() {
+    // Returns the runs as start, line, col triples, for object files
+    int[] r = new int[3 * runs];
+    for (int i = 0; i < runs; i++) {
+      r[3 * i] = start[i];
+      r[3 * i + 1] = line[i];
+      r[3 * i + 2] = col[i];
+    }
+    return r;
+  }
+
+  static LineTable of(String sourceName, int[] r) {
+    // Returns the table whose runs() are r
+    LineTable t = new LineTable(sourceName);
+    t.runs = r.length / 3;
+    t.start = new int[t.runs];
+    t.line = new int[t.runs];
+    t.col = new int[t.runs];
+    for (int i = 0; i < t.runs; i++) {
+      t.start[i] = r[3 * i];
+      t.line[i] = r[3 * i + 1];
+      t.col[i] = r[3 * i + 2];
+    }
+    return t;
+  }
+
+  public LineTable copy() {
+    // Returns a table that later additions to this one do not affect
+    LineTable t = new LineTable(sourceName);
+    t.start = Arrays.copyOf(start, runs);
+    t.line = Arrays.copyOf(line, runs);
+    t.col = Arrays.copyOf(col, runs);
+    t.runs = runs;
+    return t;
+  }
+
+} // end LineTable
+
 class CodeGen {
   static boolean generatingCode = true;
-  static int codeTop = 0, stkTop = PVM.memSize;
+  static int codeTop = 0, litTop = 0;
+  static int[] code = new int[1024]; // code segment, grown as needed
+  static int[] literals = new int[256]; // zero-terminated string literals
+  static final int maxCode = 1 << 24; // limit on either segment
+  static LineTable lines; // source position of each word of code
 
   public static final int undefined = -1,
       headerSize = PVM.headerSize,
@@ -73,11 +205,18 @@ class CodeGen {
     // Code generator for single word
     if (!generatingCode)
       return;
-    if (codeTop >= stkTop) {
+    if (codeTop >= maxCode) {
       Parser.SemError("program too long");
       generatingCode = false;
     } else {
-      PVM.mem[codeTop] = word;
+      if (codeTop == code.length)
+        code = Arrays.copyOf(code, 2 * code.length);
+      if (Parser.token != null) {
+        if (lines == null)
+          lines = new LineTable(Errors.fileName);
+        lines.add(codeTop, Parser.token.line, Parser.token.col);
+      }
+      code[codeTop] = word;
       codeTop++;
     }
   }
@@ -178,19 +317,22 @@ class CodeGen {
   }
 
   public static void writeString(String str) {
-    // Generates code to output string stored at known location
-    int l = str.length(), first = stkTop - 1;
-    if (stkTop <= codeTop + l + 1) {
+    // Generates code to output string stored at known location in the
+    // literal segment
+    int l = str.length(), first = litTop;
+    if (litTop + l + 1 > maxCode) {
       Parser.SemError("program too long");
       generatingCode = false;
       return;
     }
+    if (litTop + l + 1 > literals.length)
+      literals = Arrays.copyOf(literals, Math.max(2 * literals.length, litTop + l + 1));
     for (int i = 0; i < l; i++) {
-      stkTop--;
-      PVM.mem[stkTop] = str.charAt(i);
+      literals[litTop] = str.charAt(i);
+      litTop++;
     }
-    stkTop--;
-    PVM.mem[stkTop] = 0;
+    literals[litTop] = 0;
+    litTop++;
     emit(PVM.prns);
     emit(first);
   }
@@ -251,7 +393,7 @@ class CodeGen {
 
   public static void fixDSP(int location, int size) {
     // Fixes up DSP instruction at location to reserve size space for variables
-    PVM.mem[location + 1] = size;
+    code[location + 1] = size;
   }
 
   public static void leaveProgram() {
@@ -284,8 +426,8 @@ class CodeGen {
     // instruction currently holding a forward reference to adr and repeatedly
     // works through a linked list of such instructions
     while (adr != undefined) {
-      int nextAdr = PVM.mem[adr];
-      PVM.mem[adr] = codeTop;
+      int nextAdr = code[adr];
+      code[adr] = codeTop;
       adr = nextAdr;
     }
   }
@@ -301,9 +443,9 @@ class CodeGen {
     return codeTop;
   }
 
-  public static int getInitSP() {
-    // Returns stkTop = position for initial stack pointer
-    return stkTop;
+  public static CodeImage getImage() {
+    // Returns the code and literals generated so far as an image
+    return new CodeImage(code, codeTop, literals, litTop, lines == null ? null : lines.copy());
   }
 
   public static void oneWord(String mnemonic) {
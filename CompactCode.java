@@ -0,0 +1,264 @@
+package CalcPVM;
+
+import java.io.*;
+import java.util.*;
+import library.*;
+
+public class CompactCode {
+  // The code of an image re-encoded a byte at a time, for the compact
+  // interpreter (VirtualMachine.execute with compact set) and compact object files.
+  // Each instruction is its opcode in one byte, then any operand as a varint
+  // of its zigzag encoding (7 bits a byte, low bits first, the top bit set
+  // on all but the last), so that local slots, small constants and most
+  // branch targets take one or two bytes rather than four.  Branch targets
+  // are byte offsets, found by sizing the branches until no offset changes
+  // (offsets only grow, so this settles); a target that is not the start of
+  // an instruction becomes -1, which the interpreter reports as a bad
+  // address, as it does a jump into an operand.  Opcodes that do not fit in
+  // a byte become 255, which is no instruction either.
+  //
+  // The byte offsets replace pcs only while the compact interpreter runs:
+  // pc() and at() convert between them at the start and end of a run, by
+  // walking the code from the nearest of the marks kept every markEvery
+  // instructions.  As a tool, main() compares the
+  // sizes of the two forms of a .pvo and the speed of the two interpreters
+  // on it:
+  //
+  //   CompactCode object.pvo [runs] [data]
+
+  static final int badOpcode = 255;
+  static final int markEvery = 256;
+
+  final byte[] bytes; // the instructions
+  final int length; // bytes used
+  final int codeLen; // words of the int form
+  private int[] markAt, markPC; // offset and pc of every markEvery-th instruction
+
+  public CompactCode(int[] code, int codeLen) {
+    // Encodes the first codeLen words of code
+    this.codeLen = codeLen;
+    boolean[] starts = new boolean[codeLen + 1];
+    for (int pc = 0; pc < codeLen; pc += PVMJit.length(code[pc]))
+      starts[pc] = true;
+    int[] at = new int[codeLen + 1];
+    int size = 0;
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      size = 0;
+      for (int pc = 0; pc < codeLen; pc += PVMJit.length(code[pc])) {
+        if (at[pc] != size)
+          changed = true;
+        at[pc] = size;
+        size += 1 + (PVMJit.length(code[pc]) == 2 ? bytes(operand(code, pc, starts, at)) : 0);
+      }
+    }
+    bytes = new byte[size];
+    length = size;
+    int b = 0;
+    for (int pc = 0; pc < codeLen; pc += PVMJit.length(code[pc])) {
+      bytes[b++] = (byte) (code[pc] >= 0 && code[pc] < badOpcode ? code[pc] : badOpcode);
+      if (PVMJit.length(code[pc]) == 2)
+        b = put(bytes, b, operand(code, pc, starts, at));
+    }
+    mark();
+  }
+
+  private CompactCode(byte[] bytes, int length, int codeLen) {
+    this.bytes = bytes;
+    this.length = length;
+    this.codeLen = codeLen;
+    mark();
+  }
+
+  private void mark() {
+    // Records the marks, walking the whole code once
+    int n = 0;
+    markAt = new int[16];
+    markPC = new int[16];
+    int[] i = { 0 };
+    for (int pc = 0, k = 0; i[0] < length; k++) {
+      if (k % markEvery == 0) {
+        if (n == markAt.length) {
+          markAt = Arrays.copyOf(markAt, 2 * n);
+          markPC = Arrays.copyOf(markPC, 2 * n);
+        }
+        markAt[n] = i[0];
+        markPC[n++] = pc;
+      }
+      pc += skip(i);
+    }
+    markAt = Arrays.copyOf(markAt, Math.max(n, 1));
+    markPC = Arrays.copyOf(markPC, Math.max(n, 1));
+  }
+
+  private int skip(int[] i) {
+    // Moves i[0] past the instruction there; returns its length in words
+    int op = opcode(bytes[i[0]++]);
+    if (PVMJit.length(op) == 2)
+      get(bytes, i);
+    return PVMJit.length(op);
+  }
+
+  private static int before(int[] marks, int key) {
+    // Returns the last mark not after key, or 0
+    int m = Arrays.binarySearch(marks, key);
+    return m >= 0 ? m : Math.max(0, -m - 2);
+  }
+
+  private static int operand(int[] code, int pc, boolean[] starts, int[] at) {
+    // Returns the operand of the instruction at pc as encoded
+    int v = code[pc + 1];
+    if (!isBranch(code[pc]))
+      return v;
+    return v >= 0 && v < starts.length && starts[v] ? at[v] : -1;
+  }
+
+  static boolean isBranch(int op) {
+    return op == PVM.brn || op == PVM.bze;
+  }
+
+  static int bytes(int v) {
+    // Returns the bytes taken by the varint for v
+    int z = v << 1 ^ v >> 31, n = 1;
+    while ((z & ~0x7f) != 0) {
+      z >>>= 7;
+      n++;
+    }
+    return n;
+  }
+
+  static int put(byte[] b, int at, int v) {
+    // Writes the varint for v at b[at]; returns the offset after it
+    int z = v << 1 ^ v >> 31;
+    while ((z & ~0x7f) != 0) {
+      b[at++] = (byte) (z & 0x7f | 0x80);
+      z >>>= 7;
+    }
+    b[at++] = (byte) z;
+    return at;
+  }
+
+  static int get(byte[] b, int[] at) {
+    // Returns the varint at b[at[0]], moving at[0] past it
+    int i = at[0], x = b[i++], z = x & 0x7f;
+    for (int shift = 7; x < 0; shift += 7) {
+      x = b[i++];
+      z |= (x & 0x7f) << shift;
+    }
+    at[0] = i;
+    return z >>> 1 ^ -(z & 1);
+  }
+
+  private static int opcode(byte b) {
+    return b & 0xff;
+  }
+
+  public int pc(int at) {
+    // Returns the pc of the instruction at byte offset at, codeLen at the
+    // end, or -1 if no instruction starts there
+    int m = before(markAt, at);
+    int[] i = { markAt[m] };
+    int pc = markPC[m];
+    while (i[0] < length && i[0] < at)
+      pc += skip(i);
+    return i[0] == at ? Math.min(pc, codeLen) : -1;
+  }
+
+  public int at(int pc) {
+    // Returns the byte offset of the instruction at pc, length at the end,
+    // or -1 if no instruction starts there
+    int m = before(markPC, pc);
+    int[] i = { markAt[m] };
+    int p = markPC[m];
+    while (i[0] < length && p < pc)
+      p += skip(i);
+    return p == pc ? i[0] : pc == codeLen ? length : -1;
+  }
+
+  public int[] decode() {
+    // Returns the int form, branch targets and all (with the opcodes and
+    // targets that could not be encoded as they were encoded)
+    int[] code = new int[codeLen + 1];
+    int[] pcOf = new int[length + 1];
+    Arrays.fill(pcOf, -1);
+    int[] i = { 0 };
+    for (int pc = 0; i[0] < length; ) {
+      pcOf[i[0]] = pc;
+      pc += skip(i);
+    }
+    i[0] = 0;
+    for (int pc = 0; i[0] < length && pc < codeLen; ) {
+      int op = opcode(bytes[i[0]++]);
+      code[pc] = op;
+      if (PVMJit.length(op) == 2) {
+        int v = get(bytes, i);
+        code[pc + 1] = !isBranch(op) ? v : v >= 0 && v < length ? pcOf[v] : -1;
+      }
+      pc += PVMJit.length(op);
+    }
+    return code;
+  }
+
+  static CompactCode of(byte[] bytes, int length, int codeLen) throws IOException {
+    // Returns the code encoded in bytes, as read from an object file;
+    // throws IOException if it is not whole instructions for codeLen words
+    int[] i = { 0 };
+    int pc = 0;
+    try {
+      while (i[0] < length) {
+        int op = opcode(bytes[i[0]++]);
+        if (PVMJit.length(op) == 2)
+          get(bytes, i);
+        pc += PVMJit.length(op);
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IOException("damaged compact code");
+    }
+    if (i[0] != length || pc != codeLen)
+      throw new IOException("damaged compact code");
+    return new CompactCode(bytes, length, codeLen);
+  }
+
+  public static void main(String[] args) {
+    if (args.length < 1) {
+      System.err.println("Usage: CompactCode object.pvo [runs] [data]");
+      System.exit(1);
+    }
+    PVM.init();
+    CodeImage image;
+    int stackSize;
+    try {
+      ObjectFile object = ObjectFile.load(args[0]);
+      image = object.image;
+      stackSize = object.stackSize;
+    } catch (IOException e) {
+      System.err.println("Could not load " + args[0] + ": " + e.getMessage());
+      System.exit(1);
+      return;
+    }
+    int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    String dataName = args.length > 2 ? args[2] : null;
+    CompactCode compact = image.compact();
+    System.out.printf("%d words (%d bytes) of code, %d bytes compact (%.1f%%)%n", image.codeLen,
+        4 * image.codeLen, compact.length, 100.0 * compact.length / Math.max(1, 4 * image.codeLen));
+
+    VirtualMachine vm = new VirtualMachine(image, stackSize, PVM.heapSize, PVM.maxMemory);
+    vm.useJit = vm.tiered = false;
+    long[] best = { Long.MAX_VALUE, Long.MAX_VALUE };
+    for (int r = 0; r < runs; r++)
+      for (int form = 0; form < 2; form++) {
+        vm.compact = form == 1;
+        InFile data = new DataReader(dataName, false);
+        ResultsSink results = new ResultsSink(dataName == null ? "/dev/null" : dataName + ".bench");
+        long start = System.nanoTime();
+        vm.execute(0, data, results, false, false, false);
+        best[form] = Math.min(best[form], System.nanoTime() - start);
+        results.close();
+        data.close();
+      }
+    System.out.printf("%d operations, status %d; best of %d runs: int %.2f ms, compact %.2f ms%n", vm.ops, vm.ps,
+        runs, best[0] / 1e6, best[1] / 1e6);
+  }
+
+} // end CompactCode
@@ -0,0 +1,220 @@
+package CalcPVM;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import library.*;
+
+public class DataReader extends InFile {
+  // Data file for INPI and INPB that parses integers and booleans straight
+  // from bytes.  A named file is memory-mapped, or, with read-ahead, read in
+  // large blocks by a background thread while the program runs; the console
+  // is read in blocks as input arrives.  As with InFile, error() is set by a
+  // read that finds no valid item, whether the data is malformed or used up,
+  // and eof() once the end has been reached.  Only the reads made by the PVM
+  // are provided
+
+  static final int blockSize = 1 << 20;
+  private static final ByteBuffer endOfData = ByteBuffer.allocate(0);
+
+  final String name; // file read, or "" for the console
+  private ByteBuffer block = endOfData; // bytes being parsed
+  private long blockStart = 0; // offset in the file of the start of block
+  private FileChannel channel; // named file, when not mapped
+  private InputStream console; // or the console
+  private BlockingQueue<ByteBuffer> ahead; // blocks read in advance, if any
+  private Thread reader; // reading them
+  private boolean err = false, eof = false, failed = false;
+
+  public DataReader(String fileName, boolean readAhead) {
+    // Opens fileName, or the console if it is null or empty, reading ahead
+    // on another thread if asked to
+    name = fileName == null ? "" : fileName;
+    try {
+      if (fileName == null || fileName.equals(""))
+        console = System.in;
+      else {
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        if (!readAhead && channel.size() <= Integer.MAX_VALUE) {
+          block = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+          channel.close();
+          channel = null;
+          return;
+        }
+      }
+    } catch (IOException | InvalidPathException e) {
+      failed = true;
+      return;
+    }
+    if (readAhead) {
+      ahead = new ArrayBlockingQueue<ByteBuffer>(4);
+      reader = new Thread(() -> {
+        try {
+          ByteBuffer b;
+          do {
+            b = fill();
+            ahead.put(b);
+          } while (b != endOfData);
+        } catch (InterruptedException e) {
+          // closed
+        }
+      }, "PVM data read-ahead");
+      reader.setDaemon(true);
+      reader.start();
+    }
+  }
+
+  public boolean openError() {
+    return failed;
+  }
+
+  private ByteBuffer fill() {
+    // Reads the next block of the file or console, or returns endOfData
+    if (channel == null && console == null)
+      return endOfData;
+    try {
+      byte[] bytes = new byte[console != null ? 8192 : blockSize];
+      int n = console != null ? console.read(bytes) : channel.read(ByteBuffer.wrap(bytes));
+      if (n > 0)
+        return ByteBuffer.wrap(bytes, 0, n);
+    } catch (IOException e) {
+      failed = true;
+    }
+    return endOfData;
+  }
+
+  private int peek() {
+    // Returns the next byte without consuming it, or -1 at the end
+    while (!block.hasRemaining()) {
+      if (eof)
+        return -1;
+      blockStart += block.limit();
+      try {
+        block = ahead != null ? ahead.take() : fill();
+      } catch (InterruptedException e) {
+        block = endOfData;
+      }
+      if (block == endOfData) {
+        eof = true;
+        return -1;
+      }
+    }
+    return block.get(block.position()) & 0xff;
+  }
+
+  private int skipSpace() {
+    // Skips white space; returns the next byte, or -1 at the end
+    int c = peek();
+    while (c >= 0 && c <= ' ') {
+      block.get();
+      c = peek();
+    }
+    return c;
+  }
+
+  private void skipItem() {
+    // Discards the rest of a malformed item
+    int c = peek();
+    while (c > ' ') {
+      block.get();
+      c = peek();
+    }
+  }
+
+  public int readInt() {
+    // Reads an optionally signed decimal integer
+    err = false;
+    int c = skipSpace();
+    boolean negative = c == '-';
+    if (c == '-' || c == '+') {
+      block.get();
+      c = peek();
+    }
+    if (c < '0' || c > '9') {
+      err = true;
+      skipItem();
+      return 0;
+    }
+    long value = 0, limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+    while (c >= '0' && c <= '9') {
+      block.get();
+      value = value * 10 + (c - '0');
+      if (value > limit) {
+        err = true;
+        skipItem();
+        return 0;
+      }
+      c = peek();
+    }
+    if (c > ' ') {
+      err = true;
+      skipItem();
+      return 0;
+    }
+    return (int) (negative ? -value : value);
+  }
+
+  public boolean readBoolean() {
+    // Reads true or false, in either case
+    err = false;
+    int c = skipSpace();
+    if (c < 0) {
+      err = true;
+      return false;
+    }
+    String word = (c | 0x20) == 't' ? "true" : "false";
+    for (int i = 0; i < word.length(); i++, c = peek())
+      if ((c | 0x20) != word.charAt(i)) {
+        err = true;
+        skipItem();
+        return false;
+      } else
+        block.get();
+    if (c > ' ') {
+      err = true;
+      skipItem();
+      return false;
+    }
+    return word.equals("true");
+  }
+
+  public long position() {
+    // Returns the number of bytes read so far
+    return blockStart + block.position();
+  }
+
+  public void skip(long n) {
+    // Discards the next n bytes, as when resuming a run that had read them
+    while (n > 0 && peek() >= 0) {
+      int k = (int) Math.min(n, block.remaining());
+      block.position(block.position() + k);
+      n -= k;
+    }
+  }
+
+  public boolean error() {
+    return err;
+  }
+
+  public boolean eof() {
+    return eof;
+  }
+
+  public boolean noMoreData() {
+    return skipSpace() < 0;
+  }
+
+  public void close() {
+    if (reader != null)
+      reader.interrupt();
+    try {
+      if (channel != null)
+        channel.close();
+    } catch (IOException e) {
+      // nothing more can be done
+    }
+  }
+
+} // end DataReader
@@ -0,0 +1,271 @@
+package CalcPVM;
+
+import java.io.*;
+import java.util.*;
+import library.*;
+
+class Debugger {
+  // Interactive debugger for one machine.  Breakpoints are BRK instructions
+  // patched into a private copy of the image's code, which the machine runs
+  // instead of the shared code, so the interpreter goes at full speed until
+  // it fetches one.  Its BRK case then calls stop(), which talks to the user
+  // and arranges for the original instruction to be executed next.
+  //
+  // To regain control after a single instruction (to step, to put back a
+  // breakpoint just passed, or to see what a write did to a watched local),
+  // BRK is also patched at each successor of that instruction, and removed
+  // again at the next stop.  Watching a local arms every instruction that
+  // can write it: STL to its slot, and the stores through an address.  The
+  // loop itself never checks anything
+
+  static final String help = "s step, c continue, b [pc|:line] break, d pc|:line delete, w slot watch local,\n"
+      + "u slot unwatch, r registers, t stack, a ref heap array, m adr memory, l source,\n"
+      + "v file save a snapshot, q run on without stopping";
+
+  private final VirtualMachine vm;
+  private final int[] original; // the image's code
+  private final int codeLen;
+  final int[] code; // the copy the machine runs
+  private final TreeSet<Integer> breakpoints = new TreeSet<Integer>();
+  private final TreeMap<Integer, Integer> watches = new TreeMap<Integer, Integer>(); // slot, last value
+  private final BitSet temporary = new BitSet(); // pcs armed only until the next stop
+  private final ResultsSink console = new ResultsSink("");
+  private boolean stepping = true; // stop before the first instruction
+  private boolean detached = false; // no more stops (end of input, or quit)
+
+  public Debugger(VirtualMachine vm, String initial, int initPC) {
+    // A debugger for a run of vm from initPC with the breakpoints listed in
+    // initial (pcs, or :line for the first instruction of a source line,
+    // separated by commas).  With breakpoints it runs to the first of them,
+    // otherwise it stops at the first instruction
+    this.vm = vm;
+    original = vm.image.code();
+    codeLen = vm.image.codeLen;
+    code = Arrays.copyOf(original, original.length);
+    for (String b : initial.split(",")) {
+      int pc = place(b.trim());
+      if (pc >= 0) {
+        breakpoints.add(pc);
+        stepping = false;
+      }
+    }
+    rearm();
+    if (stepping && initPC >= 0 && initPC < codeLen) {
+      code[initPC] = PVM.brk;
+      temporary.set(initPC);
+    }
+  }
+
+  private int place(String where) {
+    // Returns the pc named by where, a pc or :line, or -1
+    return vm.image.pcOf(where);
+  }
+
+  private static boolean writes(int opcode) {
+    // True for the instructions that store through an address
+    return opcode == PVM.sto || opcode == PVM.inc || opcode == PVM.dec
+        || opcode == PVM.inpi || opcode == PVM.inpb;
+  }
+
+  private void rearm() {
+    // Patches BRK at every breakpoint and, when watching, every instruction
+    // that may write a watched local
+    for (int pc : breakpoints)
+      code[pc] = PVM.brk;
+    if (!watches.isEmpty())
+      for (int pc = 0; pc < codeLen; pc += PVMJit.length(original[pc]))
+        if (writes(original[pc]) || original[pc] == PVM.stl && watches.containsKey(original[pc + 1]))
+          code[pc] = PVM.brk;
+  }
+
+  private void disarm(int pc) {
+    // Restores the code apart from pc and the temporary stops, then patches
+    // it again for the breakpoints and watches that remain
+    for (int p = 0; p < codeLen; p += PVMJit.length(original[p]))
+      if (p != pc && !temporary.get(p))
+        code[p] = original[p];
+    rearm();
+  }
+
+  private void armSuccessors(int pc) {
+    // Patches BRK where execution may continue after the instruction at pc
+    int op = original[pc], next = pc + PVMJit.length(op);
+    int[] successors = op == PVM.halt ? new int[0]
+        : op == PVM.brn ? new int[] { original[pc + 1] }
+        : op == PVM.bze ? new int[] { next, original[pc + 1] } : new int[] { next };
+    for (int s : successors)
+      if (s >= 0 && s < codeLen && s != pc) {
+        code[s] = PVM.brk;
+        temporary.set(s);
+      }
+  }
+
+  private int local(int slot) {
+    int adr = vm.cpu.fp - 1 - slot;
+    return adr >= 1 && adr < vm.cpu.fp ? vm.load(adr) : 0;
+  }
+
+  public void stop(int pc, InFile data, OutFile results) {
+    // Called by the machine on fetching BRK at pc, with its registers as
+    // they were before that instruction.  Returns once the original
+    // instruction at pc has been put back for the machine to execute
+    for (int t = temporary.nextSetBit(0); t >= 0; t = temporary.nextSetBit(t + 1))
+      code[t] = original[t];
+    temporary.clear();
+    if (detached) {
+      code[pc] = original[pc];
+      return;
+    }
+    rearm();
+
+    String reason = null;
+    for (Map.Entry<Integer, Integer> w : watches.entrySet()) {
+      int now = local(w.getKey());
+      if (now != w.getValue()) {
+        reason = "local " + w.getKey() + " changed from " + w.getValue() + " to " + now;
+        w.setValue(now);
+      }
+    }
+    if (breakpoints.contains(pc))
+      reason = reason == null ? "breakpoint" : reason + "; breakpoint";
+    else if (stepping && reason == null)
+      reason = "step";
+
+    if (reason != null) {
+      if (results instanceof ResultsSink)
+        ((ResultsSink) results).sync();
+      stepping = false;
+      System.out.println("\n[" + reason + "] " + describe(pc));
+      command(pc, data, results);
+    }
+
+    // let the instruction at pc run, taking control back after it if need be
+    if (code[pc] == PVM.brk || stepping) {
+      code[pc] = original[pc];
+      if (!detached)
+        armSuccessors(pc);
+    }
+  }
+
+  private String describe(int pc) {
+    // The instruction at pc and where it comes from in the source
+    StringBuilder s = new StringBuilder();
+    s.append(pc).append(": ").append(PVM.mnemonics[Math.floorMod(original[pc], PVM.nul + 1)]);
+    if (PVMJit.length(original[pc]) == 2)
+      s.append(' ').append(original[pc + 1]);
+    LineTable lines = vm.image.lines;
+    if (lines != null && lines.line(pc) > 0)
+      s.append("   line ").append(lines.line(pc)).append(": ").append(lines.text(lines.line(pc)));
+    return s.toString();
+  }
+
+  private void registers(int pc) {
+    Processor cpu = vm.cpu;
+    System.out.println("PC: " + pc + " SP: " + cpu.sp + " FP: " + cpu.fp + " HP: " + cpu.hp
+        + " ops: " + vm.ops + " TOS: " + (cpu.sp >= 1 && cpu.sp < cpu.fp ? vm.load(cpu.sp) : "none"));
+  }
+
+  private void array(int ref) {
+    // Shows the heap array that ref refers to
+    int adr = ref & PVM.addrMask;
+    if (adr < vm.heapBase || adr >= vm.cpu.hp) {
+      System.out.println(ref + " is not in the heap");
+      return;
+    }
+    int size = vm.load(adr);
+    StringBuilder s = new StringBuilder("array at " + adr + ", " + size + " elements:");
+    for (int i = 0; i < size && i < 64 && adr + 1 + i < vm.cpu.hp; i++)
+      s.append(i % 8 == 0 ? "\n  [" + i + "]" : "").append(' ').append(vm.load(adr + 1 + i));
+    if (size > 64)
+      s.append(" ...");
+    System.out.println(s);
+  }
+
+  private void command(int pc, InFile data, OutFile results) {
+    // Reads and obeys commands until one resumes the run
+    while (true) {
+      System.out.print("(pvm) ");
+      String line = InFile.StdIn.readLine().trim();
+      if (InFile.StdIn.eof()) {
+        detached = true; // no one to talk to: run on
+        return;
+      }
+      String[] word = line.split("\\s+");
+      String arg = word.length > 1 ? word[1] : "";
+      int n;
+      try {
+        n = arg.startsWith(":") || arg.isEmpty() || word[0].equals("v") ? 0 : Integer.parseInt(arg);
+      } catch (NumberFormatException e) {
+        System.out.println("Bad number " + arg);
+        continue;
+      }
+      switch (word[0]) {
+        case "s":
+          stepping = true;
+          return;
+        case "c":
+          return;
+        case "q":
+          detached = true;
+          return;
+        case "b":
+          if (arg.isEmpty())
+            System.out.println("breakpoints at " + breakpoints);
+          else if (place(arg) < 0)
+            System.out.println("No instruction at " + arg);
+          else {
+            breakpoints.add(place(arg));
+            rearm();
+          }
+          break;
+        case "d":
+          if (!breakpoints.remove(place(arg)))
+            System.out.println("No breakpoint at " + arg);
+          disarm(pc);
+          break;
+        case "w":
+          watches.put(n, local(n));
+          rearm();
+          System.out.println("local " + n + " = " + local(n));
+          break;
+        case "u":
+          watches.remove(n);
+          disarm(pc);
+          break;
+        case "r":
+          registers(pc);
+          break;
+        case "t":
+          vm.stackDump(console, pc);
+          console.sync();
+          break;
+        case "a":
+          array(n);
+          break;
+        case "m":
+          System.out.println(n >= 1 && n < vm.cpu.hp ? n + ": " + vm.load(n) : "No word at " + n);
+          break;
+        case "l":
+          System.out.println(describe(pc));
+          break;
+        case "v":
+          try {
+            vm.snapshot(pc, data, results).write(arg);
+            System.out.println("Snapshot written to " + arg);
+          } catch (IOException | IllegalStateException e) {
+            System.out.println("Could not save snapshot " + arg + ": " + e.getMessage());
+          }
+          break;
+        case "":
+        case "h":
+        case "?":
+          System.out.println(help);
+          break;
+        default:
+          System.out.println("Unknown command " + word[0] + "\n" + help);
+          break;
+      }
+    }
+  }
+
+} // end Debugger
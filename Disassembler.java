@@ -0,0 +1,292 @@
+package CalcPVM;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+class Disassembler {
+  // Writes the listing of an image, in the form PVM.listCode always has and
+  // Assembler reads back:
+  //
+  //   ASSEM
+  //   BEGIN
+  //     {    0 } LDC      7
+  //     {    2 } PRNS     "a \"string\"\n"
+  //     {    4 } 57
+  //     ...
+  //   END.
+  //
+  // A word that is not an opcode with a mnemonic is listed as the number it
+  // is, and characters of literals beyond ASCII in UTF-8, as Assembler reads
+  // them back.
+  // Each line is formatted straight into a byte buffer that is reused for
+  // the whole listing and written to the file a block at a time.  A large
+  // image may be split into chunks at instruction boundaries, which workers
+  // format into buffers of their own while the chunks already done are
+  // written in order, so the file is the same whatever the number of
+  // workers
+
+  static final int blockBytes = 1 << 16; // bytes written at a time
+  static final int chunkWords = 1 << 15; // least words formatted by a worker
+
+  private static final byte[] newLine = System.lineSeparator().getBytes();
+  private static byte[][] names; // mnemonics as bytes, padded to 8 as listCode pads them, or null
+
+  private final int[] code, literals;
+  private final int codeLen, litLen;
+  private byte[] buf = new byte[blockBytes + 256];
+  private int n = 0; // bytes in buf
+  private final byte[] digits = new byte[12];
+
+  private Disassembler(CodeImage image) {
+    code = image.code();
+    literals = image.literals();
+    codeLen = image.codeLen;
+    litLen = image.litLen;
+  }
+
+  private static synchronized byte[][] names() {
+    // Returns the mnemonics as listed, after PVM.init has set them
+    if (names == null || names.length != PVM.mnemonics.length) {
+      byte[][] b = new byte[PVM.mnemonics.length][];
+      for (int op = 0; op < b.length; op++) {
+        String m = PVM.mnemonics[op];
+        if (m == null || m.length() == 0)
+          continue;
+        StringBuilder s = new StringBuilder(m);
+        while (s.length() < 8)
+          s.append(' ');
+        b[op] = s.toString().getBytes();
+      }
+      names = b;
+    }
+    return names;
+  }
+
+  private void room(int bytes) {
+    if (n + bytes > buf.length)
+      buf = Arrays.copyOf(buf, Math.max(2 * buf.length, n + bytes));
+  }
+
+  private void put(byte[] b) {
+    room(b.length);
+    System.arraycopy(b, 0, buf, n, b.length);
+    n += b.length;
+  }
+
+  private void put(char c) {
+    room(1);
+    buf[n++] = (byte) c;
+  }
+
+  private void utf8(int c) {
+    // Writes the char or code point c in UTF-8, as Assembler.string reads
+    // it back; a surrogate that is not part of a pair is written on its own
+    room(4);
+    if (c < 0x80)
+      buf[n++] = (byte) c;
+    else if (c < 0x800) {
+      buf[n++] = (byte) (0xc0 | c >> 6);
+      buf[n++] = (byte) (0x80 | c & 0x3f);
+    } else if (c < 0x10000) {
+      buf[n++] = (byte) (0xe0 | c >> 12);
+      buf[n++] = (byte) (0x80 | c >> 6 & 0x3f);
+      buf[n++] = (byte) (0x80 | c & 0x3f);
+    } else {
+      buf[n++] = (byte) (0xf0 | c >> 18);
+      buf[n++] = (byte) (0x80 | c >> 12 & 0x3f);
+      buf[n++] = (byte) (0x80 | c >> 6 & 0x3f);
+      buf[n++] = (byte) (0x80 | c & 0x3f);
+    }
+  }
+
+  private void put(int value, int width) {
+    // Writes value right-justified in width places, as OutFile.write(i, w)
+    int at = digits.length;
+    long v = value; // -Integer.MIN_VALUE does not fit an int
+    if (v < 0)
+      v = -v;
+    do {
+      digits[--at] = (byte) ('0' + v % 10);
+      v /= 10;
+    } while (v > 0);
+    if (value < 0)
+      digits[--at] = '-';
+    int len = digits.length - at;
+    room(Math.max(width, len));
+    for (int pad = width - len; pad > 0; pad--)
+      buf[n++] = ' ';
+    System.arraycopy(digits, at, buf, n, len);
+    n += len;
+  }
+
+  private static int opcode(int word, byte[][] names) {
+    // Returns word if it is an opcode with a mnemonic, otherwise -1
+    return word >= 0 && word < names.length && names[word] != null ? word : -1;
+  }
+
+  private int line(int i, byte[][] names) {
+    // Formats the instruction at i; returns the pc of the next, or codeLen
+    // if its operand would be past the end of the code
+    int o = opcode(code[i], names);
+    room(40);
+    buf[n++] = ' ';
+    buf[n++] = ' ';
+    buf[n++] = '{';
+    put(i, 5);
+    buf[n++] = ' ';
+    buf[n++] = '}';
+    buf[n++] = ' ';
+    if (o < 0)
+      put(code[i], 0);
+    else
+      put(names[o]);
+    switch (o) {
+      case PVM.brn:
+      case PVM.bze:
+      case PVM.dsp:
+      case PVM.ldl:
+      case PVM.stl:
+      case PVM.lda:
+      case PVM.ldc:
+        i++;
+        put(' ');
+        put(i < codeLen ? code[i] : 0, 0);
+        break;
+
+      case PVM.prns:
+        i++;
+        put(' ');
+        put('"');
+        for (int j = i < codeLen ? code[i] : 0; j >= 0 && j < litLen && literals[j] != 0; j++) {
+          int c = literals[j];
+          room(2);
+          switch (c) {
+            case '\\':
+              buf[n++] = '\\';
+              buf[n++] = '\\';
+              break;
+            case '\"':
+              buf[n++] = '\\';
+              buf[n++] = '\"';
+              break;
+            case '\'':
+              buf[n++] = '\\';
+              buf[n++] = '\'';
+              break;
+            case '\b':
+              buf[n++] = '\\';
+              buf[n++] = 'b';
+              break;
+            case '\t':
+              buf[n++] = '\\';
+              buf[n++] = 't';
+              break;
+            case '\n':
+              buf[n++] = '\\';
+              buf[n++] = 'n';
+              break;
+            case '\f':
+              buf[n++] = '\\';
+              buf[n++] = 'f';
+              break;
+            case '\r':
+              buf[n++] = '\\';
+              buf[n++] = 'r';
+              break;
+            default:
+              char high = (char) c;
+              if (Character.isHighSurrogate(high) && j + 1 < litLen
+                  && Character.isLowSurrogate((char) literals[j + 1]))
+                utf8(Character.toCodePoint(high, (char) literals[++j]));
+              else
+                utf8(high);
+              break;
+          }
+        }
+        put('"');
+        break;
+    }
+    put(newLine);
+    return Math.min(i + 1, codeLen);
+  }
+
+  private void flush(FileChannel channel) throws IOException {
+    ByteBuffer b = ByteBuffer.wrap(buf, 0, n);
+    while (b.hasRemaining())
+      channel.write(b);
+    n = 0;
+  }
+
+  private byte[] chunk(int from, int to) {
+    // Returns the listing of the instructions starting from from to to
+    byte[][] names = names();
+    for (int i = from; i < to; )
+      i = line(i, names);
+    return Arrays.copyOf(buf, n);
+  }
+
+  private static int[] starts(int[] code, int codeLen, int chunks) {
+    // Returns the pcs at which chunks of about equal size begin, each the
+    // start of an instruction, then codeLen
+    byte[][] names = names();
+    int size = Math.max(chunkWords, (codeLen + chunks - 1) / chunks);
+    int[] starts = new int[codeLen / size + 2];
+    int k = 0;
+    for (int i = 0; i < codeLen; ) {
+      if (i >= k * size)
+        starts[k++] = i;
+      i += PVMJit.length(opcode(code[i], names));
+    }
+    starts[k++] = codeLen;
+    return Arrays.copyOf(starts, k);
+  }
+
+  public static void write(String fileName, CodeImage image, int threads) throws IOException {
+    // Writes the listing of image to fileName, formatted by up to threads
+    // workers if the image is large enough to share between them
+    Disassembler d = new Disassembler(image);
+    try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      d.put("ASSEM\nBEGIN".getBytes());
+      d.put(newLine);
+      if (threads <= 1 || image.codeLen < 2 * chunkWords) {
+        byte[][] names = names();
+        for (int i = 0; i < image.codeLen; ) {
+          i = d.line(i, names);
+          if (d.n >= blockBytes)
+            d.flush(channel);
+        }
+      } else {
+        d.flush(channel);
+        int[] starts = starts(d.code, d.codeLen, 4 * threads);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, starts.length - 1));
+        try {
+          ArrayList<Future<byte[]>> chunks = new ArrayList<Future<byte[]>>();
+          for (int k = 0; k + 1 < starts.length; k++) {
+            int from = starts[k], to = starts[k + 1];
+            chunks.add(pool.submit(() -> new Disassembler(image).chunk(from, to)));
+          }
+          for (Future<byte[]> chunk : chunks) {
+            ByteBuffer b = ByteBuffer.wrap(chunk.get());
+            while (b.hasRemaining())
+              channel.write(b);
+          }
+        } catch (InterruptedException | ExecutionException e) {
+          throw new IOException("listing failed: " + e);
+        } finally {
+          pool.shutdownNow();
+        }
+      }
+      d.put("END.".getBytes());
+      d.put(newLine);
+      d.flush(channel);
+    } catch (InvalidPathException e) {
+      throw new IOException(e.getMessage());
+    }
+  }
+
+} // end Disassembler
@@ -0,0 +1,173 @@
+package CalcPVM;
+
+import java.util.*;
+
+class FreeListHeap {
+  // Segregated free-list allocator for programs that release their arrays
+  // with FREE, used in place of the collector.  Each block starts with a word
+  // holding its length and two flags; the array itself (size word, then
+  // elements) follows, so a reference is the block address + 1.  Free blocks
+  // keep links to their neighbours in a list for their size class, and their
+  // length again in their last word, so that a block being freed can be
+  // merged with free blocks on either side.  A free block that reaches the
+  // top of the heap is returned to it, so programs that free what they
+  // allocate run in constant memory
+
+  static final int minBlock = 4; // length word, two links, trailing length
+  static final int isFree = 1 << 30, prevFree = 1 << 31, lengthMask = isFree - 1;
+  static final int classes = 31; // class c holds lengths 2^c .. 2^(c+1) - 1
+
+  final int heapBase;
+  public int top; // first word above the heap, kept equal to cpu.hp
+  private final int[] heads = new int[classes]; // first free block of each class
+  private final BitSet live; // arrays not yet freed, when checking
+  private final WordArray words = new WordArray(null);
+
+  public int allocated, freed; // arrays allocated and freed
+  public int peak; // highest top reached
+
+  public FreeListHeap(int heapBase, boolean checked) {
+    // An empty heap at heapBase.  If checked, the arrays not yet freed are
+    // recorded, so that references to freed arrays can be detected
+    this.heapBase = heapBase;
+    top = heapBase;
+    peak = heapBase;
+    live = checked ? new BitSet() : null;
+  }
+
+  public boolean checked() {
+    return live != null;
+  }
+
+  public boolean isLive(int adr) {
+    // True if adr is the address of an array not yet freed (checked heaps only)
+    return live.get(adr);
+  }
+
+  static int need(int size) {
+    // Returns the length of a block for an array of size elements
+    return Math.max(minBlock, size + 2);
+  }
+
+  static int sizeClass(int length) {
+    return 31 - Integer.numberOfLeadingZeros(length);
+  }
+
+  private static int length(Words m, int b) {
+    return m.get(b) & lengthMask;
+  }
+
+  private void link(Words m, int b, int length) {
+    // Marks b free and puts it at the head of the list for its class
+    int c = sizeClass(length);
+    m.set(b, length | isFree);
+    m.set(b + 1, heads[c]);
+    m.set(b + 2, 0);
+    m.set(b + length - 1, length);
+    if (heads[c] != 0)
+      m.set(heads[c] + 2, b);
+    heads[c] = b;
+  }
+
+  private void unlink(Words m, int b) {
+    // Takes free block b off its list
+    int next = m.get(b + 1), prev = m.get(b + 2);
+    if (prev == 0)
+      heads[sizeClass(length(m, b))] = next;
+    else
+      m.set(prev + 1, next);
+    if (next != 0)
+      m.set(next + 2, prev);
+  }
+
+  private int fit(Words m, int length) {
+    // Returns a free block of at least length words, or 0 if there is none.
+    // Blocks of a higher class always fit, so only the first class is searched
+    for (int c = sizeClass(length); c < classes; c++)
+      for (int b = heads[c]; b != 0; b = m.get(b + 1))
+        if (length(m, b) >= length)
+          return b;
+    return 0;
+  }
+
+  public int allocate(int[] mem, int size, int limit) {
+    words.mem = mem;
+    return allocate(words, size, limit);
+  }
+
+  public int allocate(Words m, int size, int limit) {
+    // Returns the address of a new zeroed array of size elements, or 0 if
+    // the heap would have to grow beyond limit words to hold it
+    int length = need(size);
+    int b = fit(m, length);
+    if (b != 0) {
+      int whole = length(m, b);
+      unlink(m, b);
+      if (whole - length >= minBlock)
+        link(m, b + length, whole - length); // the rest stays free
+      else {
+        length = whole;
+        if (b + length < top)
+          m.set(b + length, m.get(b + length) & ~prevFree);
+      }
+    } else {
+      if ((long) top + length > limit)
+        return 0;
+      b = top;
+      top += length;
+      peak = Math.max(peak, top);
+    }
+    m.set(b, length);
+    m.set(b + 1, size);
+    for (int adr = b + 2; adr < b + length; adr++)
+      m.set(adr, 0);
+    if (live != null)
+      live.set(b + 1);
+    allocated++;
+    return b + 1;
+  }
+
+  public int free(int[] mem, int ref) {
+    words.mem = mem;
+    return free(words, ref);
+  }
+
+  public int free(Words m, int ref) {
+    // Releases the array with reference ref (not null); returns the new
+    // program status
+    int adr = ref & PVM.addrMask, b = adr - 1;
+    if ((ref & ~PVM.addrMask) != PVM.refTag || b < heapBase || adr >= top)
+      return PVM.badMem;
+    if (live != null ? !live.get(adr) : (m.get(b) & isFree) != 0)
+      return PVM.freed;
+    if (live != null)
+      live.clear(adr);
+    freed++;
+    int length = length(m, b);
+    if ((m.get(b) & prevFree) != 0) { // merge with the block below
+      int below = m.get(b - 1);
+      b -= below;
+      unlink(m, b);
+      length += below;
+    }
+    if (b + length < top && (m.get(b + length) & isFree) != 0) { // and above
+      int above = length(m, b + length);
+      unlink(m, b + length);
+      length += above;
+    }
+    if (b + length == top)
+      top = b; // the block below is in use, so the heap ends here
+    else {
+      link(m, b, length);
+      m.set(b + length, m.get(b + length) | prevFree);
+    }
+    return PVM.running;
+  }
+
+  public String report() {
+    // Summarises use of the heap so far
+    return allocated + " arrays allocated, " + freed + " freed; heap "
+        + (top - heapBase) + " words at the end, " + (peak - heapBase) + " at most";
+  }
+
+} // end FreeListHeap
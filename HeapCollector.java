@@ -0,0 +1,198 @@
+package CalcPVM;
+
+import java.util.*;
+
+interface Words {
+  // Word-addressed machine memory, whether an int[] or off the Java heap
+  int get(int adr);
+
+  void set(int adr, int value);
+} // end Words
+
+class WordArray implements Words {
+  // Words held in an int[], which may be replaced as memory grows
+  int[] mem;
+
+  WordArray(int[] mem) {
+    this.mem = mem;
+  }
+
+  public int get(int adr) {
+    return mem[adr];
+  }
+
+  public void set(int adr, int value) {
+    mem[adr] = value;
+  }
+} // end WordArray
+
+class HeapCollector {
+  // Mark-and-sweep collector for the PVM heap, run when an ANEW cannot be
+  // satisfied.  The heap is a sequence of blocks, each a size word followed
+  // by that many elements.  References carry PVM.refTag, but nothing keeps
+  // an integer from carrying it too, so no word is known to be a reference:
+  // any word that has the tag and holds an address within a block is taken
+  // as one that might be, which keeps the block alive (whether the word
+  // refers to the block itself, as left by ANEW, or to one of its elements,
+  // as left by LDXA).  The roots are the words of the stack from sp up to
+  // stackBase; blocks are then traced through their elements.
+  //
+  // Since such words cannot be rewritten, live blocks are pinned where they
+  // are.  The dead blocks above the last live one are returned to the top
+  // of the heap; each run of dead blocks below it is cleared and left as a
+  // hole, one block whose elements are free, from which reuse() carves new
+  // arrays until the next collection
+
+  public int collections; // number of collections so far
+  public long reclaimed; // words reclaimed by all of them
+  public long totalPause, longestPause; // nanoseconds spent collecting
+
+  private int[] start; // start of each block, in address order
+  private int blocks;
+  private int[] holeAt = new int[0], holeWords = new int[0]; // holes left by the last collection
+  private int holes, largest; // holes in use, and no hole has more than largest words
+
+  private int find(int adr) {
+    // Returns the block containing adr, or -1
+    int lo = 0, hi = blocks - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (adr < start[mid])
+        hi = mid - 1;
+      else if (adr >= start[mid + 1])
+        lo = mid + 1;
+      else
+        return mid;
+    }
+    return -1;
+  }
+
+  private int block(int word) {
+    // Returns the block word might refer to, or -1 if it cannot be a reference
+    if ((word & ~PVM.addrMask) != PVM.refTag)
+      return -1;
+    return find(word & PVM.addrMask);
+  }
+
+  public int collect(Words m, int sp, int stackBase, int heapBase, int hp) {
+    // Collects the heap heapBase .. hp-1 of m, whose stack runs from sp to
+    // stackBase, and returns the new top of heap.  The heap is left alone if
+    // its blocks cannot be followed (a size word has been overwritten)
+    long began = System.nanoTime();
+    holes = largest = 0;
+
+    // index the blocks; start[blocks] marks the top of the heap
+    start = new int[64];
+    blocks = 0;
+    for (int b = heapBase; b < hp; b += m.get(b) + 1) {
+      if (m.get(b) <= 0 || (long) b + m.get(b) + 1 > hp)
+        return hp;
+      if (blocks + 1 >= start.length)
+        start = Arrays.copyOf(start, 2 * start.length);
+      start[blocks++] = b;
+    }
+    start[blocks] = hp;
+
+    // mark everything that might be reachable from the stack
+    boolean[] live = new boolean[blocks];
+    int[] pending = new int[blocks];
+    int waiting = 0;
+    for (int adr = Math.max(sp, 1); adr < stackBase; adr++) {
+      int b = block(m.get(adr));
+      if (b >= 0 && !live[b]) {
+        live[b] = true;
+        pending[waiting++] = b;
+      }
+    }
+    while (waiting > 0) {
+      int from = pending[--waiting];
+      for (int adr = start[from] + 1; adr < start[from + 1]; adr++) {
+        int b = block(m.get(adr));
+        if (b >= 0 && !live[b]) {
+          live[b] = true;
+          pending[waiting++] = b;
+        }
+      }
+    }
+
+    // the heap now ends with the last live block; below that, each run of
+    // dead blocks becomes one cleared hole
+    int top = heapBase, free = 0;
+    for (int b = 0; b < blocks; b++)
+      if (live[b])
+        top = start[b + 1];
+    for (int b = 0; b < blocks && start[b] < top; ) {
+      if (live[b]) {
+        b++;
+        continue;
+      }
+      int first = start[b];
+      while (!live[b])
+        b++;
+      int words = start[b] - first;
+      m.set(first, words - 1);
+      for (int adr = first + 1; adr < start[b]; adr++)
+        m.set(adr, 0);
+      addHole(first, words);
+      free += words;
+    }
+    for (int adr = top; adr < hp; adr++)
+      m.set(adr, 0);
+
+    long pause = System.nanoTime() - began;
+    collections++;
+    reclaimed += hp - top + free;
+    totalPause += pause;
+    longestPause = Math.max(longestPause, pause);
+    start = null;
+    return top;
+  }
+
+  private void addHole(int adr, int words) {
+    if (holes == holeAt.length) {
+      holeAt = Arrays.copyOf(holeAt, Math.max(16, 2 * holes));
+      holeWords = Arrays.copyOf(holeWords, holeAt.length);
+    }
+    holeAt[holes] = adr;
+    holeWords[holes++] = words;
+    largest = Math.max(largest, words);
+  }
+
+  public int reuse(Words m, int size) {
+    // Returns the address of a cleared block of size elements taken from the
+    // first hole with room for it, or 0 if there is none.  The rest of the
+    // hole stays a block of its own, so the heap can still be followed
+    int need = size + 1;
+    if (size <= 0 || need > largest)
+      return 0;
+    int most = 0;
+    for (int h = 0; h < holes; h++) {
+      int words = holeWords[h];
+      if (words == need || words > need + 1) {
+        int adr = holeAt[h];
+        m.set(adr, size);
+        if (words > need) {
+          m.set(adr + need, words - need - 1);
+          holeAt[h] += need;
+          holeWords[h] -= need;
+        } else {
+          holes--;
+          System.arraycopy(holeAt, h + 1, holeAt, h, holes - h);
+          System.arraycopy(holeWords, h + 1, holeWords, h, holes - h);
+        }
+        return adr;
+      }
+      most = Math.max(most, words);
+    }
+    largest = most;
+    return 0;
+  }
+
+  public String report() {
+    // Summarises the collections so far
+    return collections + " garbage collection" + (collections == 1 ? "" : "s") + " reclaimed "
+        + reclaimed + " words; pauses " + longestPause / 1000 + " us longest, "
+        + totalPause / 1000 + " us in all";
+  }
+
+} // end HeapCollector
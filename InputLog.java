@@ -0,0 +1,214 @@
+package CalcPVM;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import library.*;
+
+class InputLog {
+  // A record of exactly the values that INPI and INPB consumed in a run,
+  // made by InputRecorder and fed back by InputReplay, so that a run can be
+  // reproduced without the data it first read.  The file is a header of
+  // magic and version (little-endian ints) followed by one item per read,
+  // each a varint (7 bits a byte, low bits first) of
+  //
+  //   zigzag(value) << 2 | kind
+  //
+  // where kind tells an integer from a boolean read and a good read from one
+  // that failed, so that small values take a byte and the errors recur
+
+  static final int magic = 0x494d5650; // "PVMI"
+  static final int version = 1;
+  static final int headerBytes = 8;
+  static final String ext = ".inlog"; // log of data file F in a batch is F.inlog
+  static final int intRead = 0, boolRead = 1, intError = 2, boolError = 3;
+
+  static boolean isLog(String fileName) {
+    // True if fileName is an input log rather than data
+    if (fileName == null || fileName.equals(""))
+      return false;
+    try (DataInputStream in = new DataInputStream(new FileInputStream(fileName))) {
+      return Integer.reverseBytes(in.readInt()) == magic;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  static InFile open(String fileName, boolean readAhead) {
+    // Opens fileName for INPI and INPB, replaying it if it is an input log
+    return isLog(fileName) ? new InputReplay(fileName) : new DataReader(fileName, readAhead);
+  }
+
+} // end InputLog
+
+class InputRecorder extends InFile {
+  // Passes reads on to another InFile, logging each value read
+
+  private final InFile source;
+  private OutputStream log;
+  private boolean failed = false;
+  long items = 0; // values logged
+
+  public InputRecorder(InFile source, String logName) {
+    this.source = source;
+    try {
+      log = new BufferedOutputStream(new FileOutputStream(logName), 1 << 16);
+      put(InputLog.magic);
+      put(InputLog.version);
+    } catch (IOException e) {
+      failed = true;
+    }
+  }
+
+  private void put(int word) throws IOException {
+    // Writes word little-endian
+    for (int i = 0; i < 32; i += 8)
+      log.write(word >>> i);
+  }
+
+  private void record(int kind, int value) {
+    if (failed)
+      return;
+    long item = ((long) ((value << 1) ^ (value >> 31)) & 0xffffffffL) << 2 | kind;
+    try {
+      while ((item & ~0x7fL) != 0) {
+        log.write((int) (item & 0x7f) | 0x80);
+        item >>>= 7;
+      }
+      log.write((int) item);
+      items++;
+    } catch (IOException e) {
+      failed = true;
+    }
+  }
+
+  public boolean openError() {
+    return failed || source.openError();
+  }
+
+  public int readInt() {
+    int value = source.readInt();
+    record(source.error() ? InputLog.intError : InputLog.intRead, value);
+    return value;
+  }
+
+  public boolean readBoolean() {
+    boolean value = source.readBoolean();
+    record(source.error() ? InputLog.boolError : InputLog.boolRead, value ? 1 : 0);
+    return value;
+  }
+
+  public boolean error() {
+    return source.error();
+  }
+
+  public boolean eof() {
+    return source.eof();
+  }
+
+  public boolean noMoreData() {
+    return source.noMoreData();
+  }
+
+  public void close() {
+    // Closes the source and completes the log
+    source.close();
+    try {
+      if (log != null)
+        log.close();
+    } catch (IOException e) {
+      failed = true;
+    }
+  }
+
+} // end InputRecorder
+
+class InputReplay extends InFile {
+  // Reads the values of an input log, memory-mapped, in place of the data
+  // it was recorded from.  A read of the other type from the one logged
+  // means the program is not the one recorded: it fails, and diverged()
+  // reports it.  Reads past the end of the log fail as at the end of data
+
+  private ByteBuffer items;
+  private boolean err = false, eof = false, failed = false;
+  private long diverged = -1; // index of the first mismatched read
+  private long reads = 0;
+
+  public InputReplay(String logName) {
+    try (FileChannel channel = FileChannel.open(Paths.get(logName), StandardOpenOption.READ)) {
+      items = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+      if (items.limit() < InputLog.headerBytes || items.getInt() != InputLog.magic
+          || items.getInt() != InputLog.version) {
+        failed = true;
+        items = null;
+      }
+    } catch (IOException | InvalidPathException e) {
+      failed = true;
+    }
+  }
+
+  public boolean openError() {
+    return failed;
+  }
+
+  private long next() {
+    // Returns the next item, or -1 at the end of the log
+    long item = 0;
+    for (int shift = 0; items.hasRemaining() && shift < 64; shift += 7) {
+      int b = items.get();
+      item |= (long) (b & 0x7f) << shift;
+      if (b >= 0)
+        return item;
+    }
+    return -1;
+  }
+
+  private int read(int good, int bad) {
+    // Returns the value of the next item, which should be of kind good or bad
+    reads++;
+    long item = items == null ? -1 : next();
+    if (item < 0) {
+      err = eof = true;
+      return 0;
+    }
+    int kind = (int) item & 3, zigzag = (int) (item >>> 2);
+    if (kind != good && kind != bad && diverged < 0)
+      diverged = reads;
+    err = kind != good;
+    return err ? 0 : zigzag >>> 1 ^ -(zigzag & 1);
+  }
+
+  public int readInt() {
+    return read(InputLog.intRead, InputLog.intError);
+  }
+
+  public boolean readBoolean() {
+    return read(InputLog.boolRead, InputLog.boolError) != 0;
+  }
+
+  public long diverged() {
+    // Returns the number of the first read whose type differed from the one
+    // logged, counting from 1, or -1 if none has
+    return diverged;
+  }
+
+  public boolean error() {
+    return err;
+  }
+
+  public boolean eof() {
+    return eof;
+  }
+
+  public boolean noMoreData() {
+    return items == null || !items.hasRemaining();
+  }
+
+  public void close() {
+    if (items != null)
+      OffHeapMemory.release(items);
+    items = null;
+  }
+
+} // end InputReplay
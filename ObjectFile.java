@@ -0,0 +1,135 @@
+package CalcPVM;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.zip.*;
+
+class ObjectFile {
+  // Compiled code saved as a binary .pvo file, so that a program may be run
+  // without compiling its source again.  All fields are little-endian ints:
+  //
+  //   header:    magic, version, flags, codeLen, litLen, initial SP,
+  //              line table runs, bytes of source name
+  //   code:      codeLen words, or if flags has compactCode, the number of
+  //              bytes of CompactCode then those bytes padded to a word
+  //   literals:  litLen words (zero-terminated strings for PRNS)
+  //   lines:     start, line, col of each run, then the source name in
+  //              UTF-8 padded to a whole word (if flags has hasLines)
+  //   checksum:  CRC-32 of everything before it (if flags has hasChecksum)
+  //
+  // The initial SP is the stack base of the machines the code was compiled
+  // for, stackSize + 1.  load() maps the file and copies each segment out of
+  // the mapping in bulk, checking the sums before using any of it
+
+  static final int magic = 0x4f4d5650; // "PVMO"
+  static final int version = 1;
+  static final String ext = ".pvo";
+  static final int hasLines = 1, hasChecksum = 2, compactCode = 4;
+  static final int headerInts = 8;
+
+  final CodeImage image;
+  final int stackSize;
+
+  private ObjectFile(CodeImage image, int stackSize) {
+    this.image = image;
+    this.stackSize = stackSize;
+  }
+
+  public static void write(String fileName, CodeImage image, int stackSize, boolean compact)
+      throws IOException {
+    // Writes image, compiled for machines with stackSize words of stack, with
+    // the code in its compact form if asked to
+    int[] runs = image.lines == null ? new int[0] : image.lines.runs();
+    byte[] name = image.lines == null ? new byte[0] : image.lines.sourceName.getBytes(StandardCharsets.UTF_8);
+    int nameInts = (name.length + 3) / 4;
+    CompactCode bytes = compact ? image.compact() : null;
+    int codeInts = compact ? 1 + (bytes.length + 3) / 4 : image.codeLen;
+    int words = headerInts + codeInts + image.litLen + runs.length + nameInts;
+    ByteBuffer b = ByteBuffer.allocate(4 * (words + 1)).order(ByteOrder.LITTLE_ENDIAN);
+    IntBuffer w = b.asIntBuffer();
+    w.put(magic).put(version).put((image.lines != null ? hasLines : 0) | hasChecksum | (compact ? compactCode : 0));
+    w.put(image.codeLen).put(image.litLen).put(stackSize + 1).put(runs.length / 3).put(name.length);
+    if (compact) {
+      w.put(bytes.length);
+      b.position(4 * w.position());
+      b.put(bytes.bytes, 0, bytes.length);
+      w.position(w.position() + codeInts - 1);
+    } else
+      w.put(image.code(), 0, image.codeLen);
+    w.put(image.literals(), 0, image.litLen);
+    w.put(runs);
+    b.position(4 * w.position());
+    b.put(name);
+    CRC32 sum = new CRC32();
+    sum.update(b.array(), 0, 4 * words);
+    b.putInt(4 * words, (int) sum.getValue());
+    try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      b.clear();
+      while (b.hasRemaining())
+        channel.write(b);
+    }
+  }
+
+  public static ObjectFile load(String fileName) throws IOException {
+    // Returns the image and stack size saved in fileName; throws IOException
+    // if it cannot be read or is not a valid object file
+    try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+      if (channel.size() < 4 * headerInts || channel.size() > Integer.MAX_VALUE)
+        throw new IOException("not a PVM object file");
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      try {
+        ByteBuffer b = mapped.order(ByteOrder.LITTLE_ENDIAN);
+        IntBuffer w = b.asIntBuffer();
+        if (w.get(0) != magic || w.get(1) != version)
+          throw new IOException("not a PVM object file");
+        int flags = w.get(2), codeLen = w.get(3), litLen = w.get(4), initialSP = w.get(5);
+        int runs = w.get(6), nameBytes = w.get(7);
+        if ((flags & hasLines) == 0)
+          runs = nameBytes = 0;
+        int codeBytes = (flags & compactCode) == 0 || b.limit() < 4 * (headerInts + 1) ? 0 : w.get(headerInts);
+        long codeInts = (flags & compactCode) == 0 ? codeLen : 1 + (codeBytes + 3L) / 4;
+        long words = headerInts + codeInts + litLen + 3L * runs + (nameBytes + 3) / 4;
+        if (codeLen < 0 || codeBytes < 0 || litLen < 0 || runs < 0 || nameBytes < 0 || initialSP < 1
+            || 4 * (words + ((flags & hasChecksum) != 0 ? 1 : 0)) > b.limit())
+          throw new IOException("damaged PVM object file");
+        if ((flags & hasChecksum) != 0) {
+          CRC32 sum = new CRC32();
+          ByteBuffer body = b.duplicate();
+          body.limit((int) (4 * words));
+          sum.update(body);
+          if ((int) sum.getValue() != w.get((int) words))
+            throw new IOException("checksum of PVM object file does not match");
+        }
+        int[] code = new int[codeLen], literals = new int[litLen], r = new int[3 * runs];
+        if ((flags & compactCode) == 0) {
+          w.position(headerInts);
+          w.get(code);
+        } else {
+          byte[] bytes = new byte[codeBytes];
+          b.position(4 * (headerInts + 1));
+          b.get(bytes);
+          code = CompactCode.of(bytes, codeBytes, codeLen).decode();
+          w.position((int) (headerInts + codeInts));
+        }
+        w.get(literals).get(r);
+        LineTable lines = null;
+        if ((flags & hasLines) != 0) {
+          byte[] name = new byte[nameBytes];
+          b.position(4 * w.position());
+          b.get(name);
+          lines = LineTable.of(new String(name, StandardCharsets.UTF_8), r);
+        }
+        return new ObjectFile(new CodeImage(code, codeLen, literals, litLen, lines), initialSP - 1);
+      } finally {
+        OffHeapMemory.release(mapped);
+      }
+    } catch (InvalidPathException e) {
+      throw new IOException(e.getMessage());
+    }
+  }
+
+} // end ObjectFile
@@ -0,0 +1,124 @@
+package CalcPVM;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+class OffHeapMemory implements Words {
+  // VM data memory held outside the Java heap, in segments of direct or
+  // file-mapped buffers.  Growing adds segments without copying, and free()
+  // releases them at once rather than whenever the collector gets to them
+
+  static final int segmentShift = 20; // 1M words (4MB) per segment
+  static final int segmentWords = 1 << segmentShift;
+  static final int segmentMask = segmentWords - 1;
+
+  private ByteBuffer[] buffers = new ByteBuffer[0];
+  private IntBuffer[] segments = new IntBuffer[0];
+  private int length = 0; // words currently addressable
+  private FileChannel file; // backing file, or null for anonymous memory
+
+  public OffHeapMemory(int length, String fileName) {
+    // Creates a memory of at least length words, mapped to fileName (which is
+    // truncated first) unless that is null
+    if (fileName != null)
+      try {
+        file = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    ensure(length);
+  }
+
+  public int length() {
+    return length;
+  }
+
+  public int get(int adr) {
+    return segments[adr >>> segmentShift].get(adr & segmentMask);
+  }
+
+  public void set(int adr, int value) {
+    segments[adr >>> segmentShift].put(adr & segmentMask, value);
+  }
+
+  public void clear(int from, int to) {
+    // Sets words from .. to-1 to zero
+    for (int adr = from; adr < to; adr++)
+      set(adr, 0);
+  }
+
+  public boolean ensure(int words) {
+    // Adds segments until at least words words are addressable; returns false
+    // if the memory cannot be extended
+    int needed = (int) (((long) words + segmentWords - 1) >>> segmentShift);
+    if (needed <= segments.length)
+      return true;
+    ByteBuffer[] moreBuffers = Arrays.copyOf(buffers, needed);
+    IntBuffer[] more = Arrays.copyOf(segments, needed);
+    long bytes = 4L * segmentWords;
+    try {
+      for (int s = segments.length; s < needed; s++) {
+        if (file == null)
+          moreBuffers[s] = ByteBuffer.allocateDirect((int) bytes);
+        else
+          moreBuffers[s] = file.map(FileChannel.MapMode.READ_WRITE, s * bytes, bytes);
+        more[s] = moreBuffers[s].order(ByteOrder.nativeOrder()).asIntBuffer();
+      }
+    } catch (IOException | OutOfMemoryError e) {
+      return false;
+    }
+    buffers = moreBuffers;
+    segments = more;
+    length = (int) Math.min(Integer.MAX_VALUE, (long) needed << segmentShift);
+    return true;
+  }
+
+  public int[] copy(int from, int to) {
+    // Returns words from .. to-1 in an array indexed by address
+    int[] words = new int[to];
+    for (int adr = from; adr < to; adr++)
+      words[adr] = get(adr);
+    return words;
+  }
+
+  public void free() {
+    // Releases every segment now; the memory must not be used afterwards
+    for (ByteBuffer b : buffers)
+      release(b);
+    buffers = new ByteBuffer[0];
+    segments = new IntBuffer[0];
+    length = 0;
+    if (file != null)
+      try {
+        file.close();
+      } catch (IOException e) {
+        // nothing more can be done
+      }
+  }
+
+  private static Object unsafe;
+  private static Method invokeCleaner;
+
+  static synchronized void release(ByteBuffer b) {
+    // Frees a direct or mapped buffer through Unsafe.invokeCleaner, or leaves
+    // it to the collector where that is unavailable
+    try {
+      if (invokeCleaner == null) {
+        Class<?> c = Class.forName("sun.misc.Unsafe");
+        Field f = c.getDeclaredField("theUnsafe");
+        f.setAccessible(true);
+        unsafe = f.get(null);
+        invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+      }
+      invokeCleaner.invoke(unsafe, b);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // left for the collector
+    }
+  }
+
+} // end OffHeapMemory
@@ -1,5 +1,6 @@
 package CalcPVM;
 
+import java.io.*;
 import java.util.*;
 import library.*;
 
@@ -55,17 +56,37 @@ class PVM {
       stl = 36,
       inc = 37,
       dec = 38,
+      free = 39,
+      brk = 40, // breakpoint, patched in by the debugger
 
       nul = 99; // leave gap for future
 
   public static String[] mnemonics = new String[PVM.nul + 1];
+  private static MnemonicTable table; // mnemonics hashed, for opCode and Assembler
 
-  // Memory
+  // Memory layout, the default for new machines.  Code and literals are held
+  // apart in a CodeImage; data memory has a null word at 0, then the stack
+  // growing down from stackSize, then the heap growing up from stackSize + 1,
+  // reallocated as needed until the whole memory reaches maxMemory words
 
-  public static final int memSize = 5120; // Limit on memory
   public static final int headerSize = 4;
-  public static int[] mem; // Simulated memory
-  static int stackBase, heapBase; // Limits on cpu.sp
+  static int stackSize = 5120; // words of stack, the whole of the old fixed memory
+  static int heapSize = 4096; // initial words of heap
+  static int maxMemory = 1 << 24; // limit on stack and heap together
+  static boolean offHeap = false; // hold stack and heap outside the Java heap
+  static String memoryFile = null; // file to map off-heap memory to, if any
+
+  // Heap references are tagged so that the collector can tell them from
+  // integers; addresses, and so memory, are limited to refTag words
+
+  static final int refTag = 1 << 30;
+  static final int addrMask = refTag - 1;
+
+  // Heap management, the default for new machines: garbage collection, or
+  // explicit FREE with a free-list allocator
+
+  static boolean freeList = false; // allocate from free lists; no collection
+  static boolean checkFreed = false; // detect use of freed arrays (interpreted)
 
   // Program status
 
@@ -80,394 +101,72 @@ class PVM {
       badVal = 8,
       badAdr = 9,
       badAll = 10,
-      nullRef = 11;
+      nullRef = 11,
+      freed = 12,
+      stepLimit = 13,
+      timeOut = 14,
+      heapLimit = 15;
 
-  static int ps;
+  // Execution tier, the default for new machines
 
-  // The processor
+  static boolean useJit = false; // translate to JVM bytecode when not tracing
+  static boolean tiered = false; // interpret until a region is hot, then translate
+  static int backEdgeLimit = 1000; // taken backward branches before tier-up
+  static int blockLimit = 10000; // entries to one branch target before tier-up
+  static boolean compactCode = false; // interpret code encoded in bytes (see CompactCode)
 
-  static Processor cpu = new Processor();
+  // Limits on each run, checked at backward branches; 0 for none
 
-  // Utilities
+  static long maxSteps = 0; // operations allowed
+  static int timeLimit = 0; // milliseconds allowed
+  static int maxHeap = 0; // words of heap allowed
 
-  static String padding = "                                                               ";
-  static final int maxInt = Integer.MAX_VALUE;
-  static final int maxChar = 255;
+  // Profiling of interpreted runs
 
-  static void stackDump(OutFile results, int pcNow) {
-    // Dump local variable and stack area - useful for debugging
-    int onLine = 0;
-    results.write("\nStack dump at " + pcNow);
-    results.write(" FP:");
-    results.write(cpu.fp, 4);
-    results.write(" SP:");
-    results.writeLine(cpu.sp, 4);
-    for (int i = stackBase - 1; i >= cpu.sp; i--) {
-      results.write(i, 7);
-      results.write(mem[i], 5);
-      onLine++;
-      if (onLine % 8 == 0)
-        results.writeLine();
-    }
-    results.writeLine();
-  } // PVM.stackDump
-
-  static void trace(OutFile results, int pcNow, boolean traceStack, boolean traceHeap) {
-    // Simple trace facility for run time debugging
-    if (traceStack)
-      stackDump(results, pcNow);
-
-    results.write(" PC:");
-    results.write(pcNow, 5);
-    results.write(" FP:");
-    results.write(cpu.fp, 5);
-    results.write(" SP:");
-    results.write(cpu.sp, 5);
-    results.write(" HP:");
-    results.write(cpu.hp, 5);
-    results.write(" TOS:");
-    if (cpu.sp < memSize)
-      results.write(mem[cpu.sp], 5);
-    else
-      results.write(" ????");
-    results.write("  " + mnemonics[cpu.ir], -8);
-    switch (cpu.ir) {
-      case PVM.brn:
-      case PVM.bze:
-      case PVM.dsp:
-      case PVM.lda:
-      case PVM.ldc:
-      case PVM.prns:
-        results.write(mem[cpu.pc], 7);
-        break;
-      default:
-        break;
-    }
-    results.writeLine();
-  }
+  static String profileName = null; // files written are this with .prof and .folded
+  static String sampleName = null; // and this with .samples
+  static int sampleInterval = 1000; // microseconds between samples
 
-  static void postMortem(OutFile results, int pcNow) {
-    // Reports run time error and position
-    results.writeLine();
-    switch (ps) {
-      case badMem:
-        results.write("Memory violation");
-        break;
-      case badData:
-        results.write("Invalid data");
-        break;
-      case noData:
-        results.write("No more data");
-        break;
-      case divZero:
-        results.write("Division by zero");
-        break;
-      case badOp:
-        results.write("Illegal opcode");
-        break;
-      case badInd:
-        results.write("Subscript out of range");
-        break;
-      case badVal:
-        results.write("Value out of range");
-        break;
-      case badAdr:
-        results.write("Bad address");
-        break;
-      case badAll:
-        results.write("Heap allocation error");
-        break;
-      case nullRef:
-        results.write("Null reference");
-        break;
-      default:
-        results.write("Interpreter error!");
-        break;
-    }
-    results.writeLine(" at " + pcNow);
-  }
+  // Binary and filtered tracing of interpreted runs (see TraceDecoder)
 
-  // The interpreters and utility methods
+  static String traceName = null; // ring file of trace records, if not null
+  static int traceRecords = 1 << 20; // instructions it holds
+  static String traceIf = null; // TraceFilter for this and the text trace, if not null
 
-  static int next() {
-    // Fetches next word of program and bumps program counter
-    return mem[cpu.pc++];
-  }
+  // Debugging of interpreted runs
 
-  static void push(int value) {
-    // Bumps stack pointer and pushes value onto stack
-    mem[--cpu.sp] = value;
-    if (cpu.sp < cpu.hp)
-      ps = badMem;
-  }
+  static String breakpoints = null; // pcs or :lines to stop at, if not null (see Debugger)
 
-  static int pop() {
-    // Pops and returns top value on stack and bumps stack pointer
-    if (cpu.sp == cpu.fp)
-      ps = badMem;
-    return mem[cpu.sp++];
-  }
+  // Snapshots of interpreted runs (see Snapshot)
 
-  static boolean inBounds(int p) {
-    // Check that memory pointer p does not go out of bounds. This should not
-    // happen with correct code, but it is just as well to check
-    if (p < heapBase || p > memSize)
-      ps = badMem;
-    return (ps == running);
-  }
+  static String snapshotName = null; // file a run is saved to, if not null
+  static String snapshotAt = null; // pc or :line to save at; if null, when a limit stops the run
 
-  public static void emulator(int initPC, int codeLen, int initSP,
-      InFile data, OutFile results, boolean tracing, boolean traceStack, boolean traceHeap) {
-    // Emulates action of the codeLen instructions stored in mem[0 .. codeLen-1],
-    // with
-    // program counter initialized to initPC, stack pointer initialized to initSP.
-    // data and results are used for I/O. Tracing at the code level may be requested
-
-    int pcNow; // current program counter
-    int loop; // internal loops
-    int tos, sos; // value popped from stack
-    int adr; // effective address for memory accesses
-    stackBase = initSP;
-    heapBase = codeLen; // initialize boundaries
-    cpu.hp = heapBase; // initialize registers
-    cpu.sp = stackBase;
-    cpu.gp = stackBase;
-    cpu.mp = stackBase;
-    cpu.fp = stackBase;
-    cpu.pc = initPC; // initialize program counter
-    ps = running; // prepare to execute
-    int ops = 0;
-
-    do {
-      ops++;
-      pcNow = cpu.pc; // retain for tracing/postmortem
-      if (cpu.pc < 0 || cpu.pc >= codeLen) {
-        ps = badAdr;
-        break;
-      }
-      cpu.ir = next(); // fetch
-      if (tracing)
-        trace(results, pcNow, traceStack, traceHeap);
-      switch (cpu.ir) { // execute
-        case PVM.nop: // no operation
-          break;
-        case PVM.dsp: // decrement stack pointer (allocate space for variables)
-          int localSpace = next();
-          cpu.sp -= localSpace;
-          if (inBounds(cpu.sp)) // initialize
-            for (loop = 0; loop < localSpace; loop++)
-              mem[cpu.sp + loop] = 0;
-          break;
-        case PVM.ldc: // push constant value
-          push(next());
-          break;
-        case PVM.lda: // push local address
-          adr = cpu.fp - 1 - next();
-          if (inBounds(adr))
-            push(adr);
-          break;
-        case PVM.ldv: // dereference
-          push(mem[pop()]);
-          break;
-        case PVM.sto: // store
-          tos = pop();
-          adr = pop();
-          if (inBounds(adr))
-            mem[adr] = tos;
-          break;
-        case PVM.ldxa: // heap array indexing
-          adr = pop();
-          int heapPtr = pop();
-          if (heapPtr == 0)
-            ps = nullRef;
-          else if (heapPtr < heapBase || heapPtr >= cpu.hp)
-            ps = badMem;
-          else if (adr < 0 || adr >= mem[heapPtr])
-            ps = badInd;
-          else
-            push(heapPtr + adr + 1);
-          break;
-        case PVM.inpi: // integer input
-          adr = pop();
-          if (inBounds(adr)) {
-            mem[adr] = data.readInt();
-            if (data.error())
-              ps = badData;
-          }
-          break;
-        case PVM.prni: // integer output
-          if (tracing)
-            results.write(padding);
-          results.write(pop(), 0);
-          if (tracing)
-            results.writeLine();
-          break;
-        case PVM.inpb: // boolean input
-          adr = pop();
-          if (inBounds(adr)) {
-            mem[adr] = data.readBoolean() ? 1 : 0;
-            if (data.error())
-              ps = badData;
-          }
-          break;
-        case PVM.prnb: // boolean output
-          if (tracing)
-            results.write(padding);
-          if (pop() != 0)
-            results.write(" true  ");
-          else
-            results.write(" false ");
-          if (tracing)
-            results.writeLine();
-          break;
-        case PVM.prns: // string output
-          if (tracing)
-            results.write(padding);
-          loop = next();
-          while (ps == running && mem[loop] != 0) {
-            results.write((char) mem[loop]);
-            loop--;
-            if (loop < stackBase)
-              ps = badMem;
-          }
-          if (tracing)
-            results.writeLine();
-          break;
-        case PVM.prnl: // newline
-          results.writeLine();
-          break;
-        case PVM.neg: // integer negation
-          push(-pop());
-          break;
-        case PVM.add: // integer addition
-          tos = pop();
-          push(pop() + tos);
-          break;
-        case PVM.sub: // integer subtraction
-          tos = pop();
-          push(pop() - tos);
-          break;
-        case PVM.mul: // integer multiplication
-          tos = pop();
-          sos = pop();
-          if (tos != 0 && Math.abs(sos) > maxInt / Math.abs(tos))
-            ps = badVal;
-          else
-            push(sos * tos);
-          break;
-        case PVM.div: // integer division (quotient)
-          tos = pop();
-          if (tos == 0)
-            ps = divZero;
-          else
-            push(pop() / tos);
-          break;
-        case PVM.rem: // integer division (remainder)
-          tos = pop();
-          if (tos == 0)
-            ps = divZero;
-          else
-            push(pop() % tos);
-          break;
-        case PVM.not: // logical negation
-          push(pop() == 0 ? 1 : 0);
-          break;
-        case PVM.and: // logical and
-          tos = pop();
-          push(pop() & tos);
-          break;
-        case PVM.or: // logical or
-          tos = pop();
-          push(pop() | tos);
-          break;
-        case PVM.ceq: // logical equality
-          tos = pop();
-          push(pop() == tos ? 1 : 0);
-          break;
-        case PVM.cne: // logical inequality
-          tos = pop();
-          push(pop() != tos ? 1 : 0);
-          break;
-        case PVM.clt: // logical less
-          tos = pop();
-          push(pop() < tos ? 1 : 0);
-          break;
-        case PVM.cle: // logical less or equal
-          tos = pop();
-          push(pop() <= tos ? 1 : 0);
-          break;
-        case PVM.cgt: // logical greater
-          tos = pop();
-          push(pop() > tos ? 1 : 0);
-          break;
-        case PVM.cge: // logical greater or equal
-          tos = pop();
-          push(pop() >= tos ? 1 : 0);
-          break;
-        case PVM.brn: // unconditional branch
-          cpu.pc = next();
-          if (cpu.pc < 0 || cpu.pc >= codeLen)
-            ps = badAdr;
-          break;
-        case PVM.bze: // pop top of stack, branch if false
-          int target = next();
-          if (pop() == 0) {
-            cpu.pc = target;
-            if (cpu.pc < 0 || cpu.pc >= codeLen)
-              ps = badAdr;
-          }
-          break;
-        case PVM.anew: // heap array allocation
-          int size = pop();
-          if (size <= 0 || size + 1 > cpu.sp - cpu.hp - 2)
-            ps = badAll;
-          else {
-            mem[cpu.hp] = size;
-            push(cpu.hp);
-            cpu.hp += size + 1;
-          }
-          break;
-        case PVM.halt: // halt
-          ps = finished;
-          break;
-        case PVM.stk: // stack dump (debugging)
-          stackDump(results, pcNow);
-          break;
-        case PVM.ldl: // push local value
-          adr = cpu.fp - 1 - next();
-          if (inBounds(adr))
-            push(mem[adr]);
-          break;
-        case PVM.stl: // store local value
-          adr = cpu.fp - 1 - next();
-          if (inBounds(adr))
-            mem[adr] = pop();
-          break;
-        case PVM.inc: // ++
-          adr = pop();
-          if (inBounds(adr))
-            mem[adr]++;
-          break;
-        case PVM.dec: // --
-          adr = pop();
-          if (inBounds(adr))
-            mem[adr]--;
-          break;
-
-        default: // unrecognized opcode
-          ps = badOp;
-          break;
-      }
-    } while (ps == running);
+  // Input and output
 
-    System.out.println("\n\n" + ops + " operations. ");
-    if (ps != finished)
-      postMortem(results, pcNow);
+  static boolean readAhead = false; // read data files on a background thread
+  static boolean asyncResults = false; // write results on a background thread
+  static String inputLogName = null; // log of the input each run consumes, if not null (see InputLog)
+
+  // Utilities
+
+  static String padding = "                                                               ";
+  static final int maxInt = Integer.MAX_VALUE;
+  static final int maxChar = 255;
+
+  // The interpreter
+
+  public static void emulator(CodeImage image, int initPC,
+      InFile data, OutFile results, boolean tracing, boolean traceStack, boolean traceHeap) {
+    // Emulates action of the instructions of image, with program counter
+    // initialized to initPC, on a fresh VirtualMachine. data and results are
+    // used for I/O. Tracing at the code level may be requested
+    new VirtualMachine(image).run(initPC, data, results, tracing, traceStack, traceHeap);
   }
 
-  public static void interpret(int codeLen, int initSP) {
-    // Interactively opens data and results files. Then interprets the codeLen
-    // instructions stored in mem, with stack pointer initialized to initSP
+  public static void interpret(CodeImage image) {
+    // Interactively opens data and results files. Then interprets the
+    // instructions of image
     System.out.print("\nTrace execution (y/N/q)? ");
     char reply = (InFile.StdIn.readLine() + " ").toUpperCase().charAt(0);
     boolean traceStack = false;
@@ -479,110 +178,51 @@ class PVM {
       }
 
       System.out.print("\nData file [STDIN] ? ");
-      InFile data = new InFile(InFile.StdIn.readLine());
+      InFile data = InputLog.open(InFile.StdIn.readLine(), readAhead);
       System.out.print("\nResults file [STDOUT] ? ");
       String fname = InFile.StdIn.readLine();
-      OutFile results = new OutFile(fname);
-      emulator(0, codeLen, initSP, data, results, tracing, traceStack, false);
-      if (!fname.equals(""))
-        results.close();
+      OutFile results = new ResultsSink(fname, asyncResults);
+      emulator(image, 0, data, results, tracing, traceStack, false);
+      results.close(); // stops any writer thread; the console stays open
       // data.close();
     }
   } // PVM.interpret
 
-  public static void listCode(String fileName, int codeLen) {
-    // Lists the codeLen instructions stored in mem on a named output file
-    int i, j, n;
-
+  public static void listCode(String fileName, CodeImage image) {
+    // Lists the instructions of image on a named output file, sharing the
+    // formatting of a large image between the processors
     if (fileName == null)
       return;
-    OutFile codeFile = new OutFile(fileName);
-
-    i = 0;
-    codeFile.writeLine("ASSEM\nBEGIN");
-    while (i < codeLen) {
-      int o = mem[i] % (PVM.nul + 1); // force in range
-      codeFile.write("  {");
-      codeFile.write(i, 5);
-      codeFile.write(" } ");
-      codeFile.write(mnemonics[o], -8);
-      switch (o) {
-        case PVM.brn:
-        case PVM.bze:
-        case PVM.dsp:
-        case PVM.ldl:
-        case PVM.stl:
-        case PVM.lda:
-        case PVM.ldc:
-          i = (i + 1) % memSize;
-          codeFile.write(mem[i]);
-          break;
-
-        case PVM.prns:
-          i = (i + 1) % memSize;
-          j = mem[i];
-          codeFile.write(" \"");
-          while (mem[j] != 0) {
-            switch (mem[j]) {
-              case '\\':
-                codeFile.write("\\\\");
-                break;
-              case '\"':
-                codeFile.write("\\\"");
-                break;
-              case '\'':
-                codeFile.write("\\\'");
-                break;
-              case '\b':
-                codeFile.write("\\b");
-                break;
-              case '\t':
-                codeFile.write("\\t");
-                break;
-              case '\n':
-                codeFile.write("\\n");
-                break;
-              case '\f':
-                codeFile.write("\\f");
-                break;
-              case '\r':
-                codeFile.write("\\r");
-                break;
-              default:
-                codeFile.write((char) mem[j]);
-                break;
-            }
-            j--;
-          }
-          codeFile.write("\"");
-          break;
-      }
-      i = (i + 1) % memSize;
-      codeFile.writeLine();
+    try {
+      Disassembler.write(fileName, image, Runtime.getRuntime().availableProcessors());
+    } catch (IOException e) {
+      System.err.println("Could not write " + fileName + ": " + e.getMessage());
     }
-    codeFile.writeLine("END.");
-    codeFile.close();
   } // PVM.listCode
 
   public static int opCode(String str) {
     // Maps str to opcode, or to PVM.nul if no match can be found
-    int op = 0;
-    while (op != PVM.nul && !(str.toUpperCase().equals(mnemonics[op])))
-      op++;
-    return op;
+    int op = mnemonicTable().opcode(str);
+    return op < 0 ? PVM.nul : op;
   } // PVM.opCode
 
+  static synchronized MnemonicTable mnemonicTable() {
+    // Returns the perfect hash of the mnemonics, made by init, which is run
+    // first if it has not been
+    if (table == null)
+      init();
+    return table;
+  }
+
   public static void init() {
     // Initializes stack machine
-    mem = new int[memSize + 1]; // virtual machine memory
-    for (int i = 0; i <= memSize; i++)
-      mem[i] = 0;
     // Initialize mnemonic table this way for ease of modification in exercises
     for (int i = 0; i <= PVM.nul; i++)
       mnemonics[i] = "";
     mnemonics[PVM.add] = "ADD";
     mnemonics[PVM.and] = "AND";
     mnemonics[PVM.anew] = "ANEW";
+    mnemonics[PVM.brk] = "BRK";
     mnemonics[PVM.brn] = "BRN";
     mnemonics[PVM.bze] = "BZE";
     mnemonics[PVM.ceq] = "CEQ";
@@ -594,6 +234,7 @@ class PVM {
     mnemonics[PVM.dec] = "DEC";
     mnemonics[PVM.div] = "DIV";
     mnemonics[PVM.dsp] = "DSP";
+    mnemonics[PVM.free] = "FREE";
     mnemonics[PVM.halt] = "HALT";
     mnemonics[PVM.inc] = "INC";
     mnemonics[PVM.inpb] = "INPB";
@@ -618,6 +259,9 @@ class PVM {
     mnemonics[PVM.stl] = "STL";
     mnemonics[PVM.sto] = "STO";
     mnemonics[PVM.sub] = "SUB";
+    synchronized (PVM.class) {
+      table = new MnemonicTable(mnemonics);
+    }
   } // PVM.init
 
 } // end PVM
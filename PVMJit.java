@@ -0,0 +1,994 @@
+package CalcPVM;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.net.*;
+import java.util.*;
+import java.util.jar.*;
+import library.*;
+
+class ClassAssembler {
+  // Builds the bytes of a class holding static methods only.  The class file
+  // version is 49, so the verifier infers types and no stack map frames need
+  // to be computed for the branches
+
+  private ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private DataOutputStream poolOut = new DataOutputStream(pool);
+  private HashMap<String, Integer> entries = new HashMap<String, Integer>();
+  private int poolCount = 1;
+
+  byte[] code = new byte[4096];
+  int codeTop = 0;
+
+  private int[] labelAdr = new int[64];
+  private int labelCount = 0;
+  private ArrayList<int[]> fixups = new ArrayList<int[]>(); // {opcode position, patch position, label}
+
+  private ByteArrayOutputStream methods = new ByteArrayOutputStream();
+  private int methodCount = 0;
+
+  private int entry(String key, int tag, String a, int b, int c) {
+    // Returns the constant pool index for key, adding the entry if needed
+    Integer index = entries.get(key);
+    if (index != null)
+      return index;
+    try {
+      poolOut.writeByte(tag);
+      if (tag == 1)
+        poolOut.writeUTF(a);
+      else if (tag == 3)
+        poolOut.writeInt(b);
+      else if (tag == 7 || tag == 8)
+        poolOut.writeShort(b);
+      else {
+        poolOut.writeShort(b);
+        poolOut.writeShort(c);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    entries.put(key, poolCount);
+    return poolCount++;
+  }
+
+  int utf8(String s) {
+    return entry("U" + s, 1, s, 0, 0);
+  }
+
+  int integer(int value) {
+    return entry("I" + value, 3, null, value, 0);
+  }
+
+  int string(String s) {
+    return entry("S" + s, 8, null, utf8(s), 0);
+  }
+
+  int classRef(String name) {
+    return entry("C" + name, 7, null, utf8(name), 0);
+  }
+
+  int nameAndType(String name, String desc) {
+    return entry("N" + name + ":" + desc, 12, null, utf8(name), utf8(desc));
+  }
+
+  int methodRef(String owner, String name, String desc) {
+    return entry("M" + owner + "." + name + desc, 10, null, classRef(owner), nameAndType(name, desc));
+  }
+
+  int fieldRef(String owner, String name, String desc) {
+    return entry("F" + owner + "." + name + desc, 9, null, classRef(owner), nameAndType(name, desc));
+  }
+
+  void u1(int b) {
+    if (codeTop == code.length)
+      code = Arrays.copyOf(code, code.length * 2);
+    code[codeTop++] = (byte) b;
+  }
+
+  void u2(int w) {
+    u1(w >> 8);
+    u1(w);
+  }
+
+  int newLabel() {
+    if (labelCount == labelAdr.length)
+      labelAdr = Arrays.copyOf(labelAdr, labelCount * 2);
+    labelAdr[labelCount] = -1;
+    return labelCount++;
+  }
+
+  void place(int label) {
+    // Binds label to the current code position
+    labelAdr[label] = codeTop;
+  }
+
+  void jump(int opcode, int label) {
+    // Emits a branch instruction with a 16 bit offset to label
+    fixups.add(new int[] { codeTop, codeTop + 1, label });
+    u1(opcode);
+    u2(0);
+  }
+
+  void switchTo(int[] keys, int[] labels, int defaultLabel) {
+    // Emits a lookupswitch; keys must be in ascending order
+    int start = codeTop;
+    u1(0xab);
+    while (codeTop % 4 != 0)
+      u1(0);
+    fixups.add(new int[] { start, codeTop, -1 - defaultLabel });
+    u2(0);
+    u2(0);
+    u2(keys.length >> 16);
+    u2(keys.length);
+    for (int i = 0; i < keys.length; i++) {
+      u2(keys[i] >> 16);
+      u2(keys[i]);
+      fixups.add(new int[] { start, codeTop, -1 - labels[i] });
+      u2(0);
+      u2(0);
+    }
+  }
+
+  private boolean resolve() {
+    // Patches all branch offsets; returns false if any is out of range
+    for (int[] f : fixups) {
+      boolean wide = f[2] < 0;
+      int offset = labelAdr[wide ? -1 - f[2] : f[2]] - f[0];
+      if (wide) {
+        code[f[1]] = (byte) (offset >> 24);
+        code[f[1] + 1] = (byte) (offset >> 16);
+        code[f[1] + 2] = (byte) (offset >> 8);
+        code[f[1] + 3] = (byte) offset;
+      } else {
+        if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+          return false;
+        code[f[1]] = (byte) (offset >> 8);
+        code[f[1] + 1] = (byte) offset;
+      }
+    }
+    return true;
+  }
+
+  boolean endMethod(String methodName, String desc, int maxStack, int maxLocals) {
+    // Adds the code emitted so far as a public static method and starts a new
+    // one; returns false if the method is too large
+    boolean ok = resolve() && codeTop <= 65535;
+    if (ok) {
+      DataOutputStream out = new DataOutputStream(methods);
+      try {
+        out.writeShort(0x0009); // public static
+        out.writeShort(utf8(methodName));
+        out.writeShort(utf8(desc));
+        out.writeShort(1);
+        out.writeShort(utf8("Code"));
+        out.writeInt(12 + codeTop);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(codeTop);
+        out.write(code, 0, codeTop);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // code attributes
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+      methodCount++;
+    }
+    codeTop = 0;
+    labelCount = 0;
+    fixups.clear();
+    return ok;
+  }
+
+  byte[] toClass(String className) {
+    // Assembles the complete class file
+    int thisClass = classRef(className), superClass = classRef("java/lang/Object");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(49);
+      out.writeShort(poolCount);
+      poolOut.flush();
+      pool.writeTo(out);
+      out.writeShort(0x0031); // public final super
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(0); // interfaces
+      out.writeShort(0); // fields
+      out.writeShort(methodCount);
+      methods.writeTo(out);
+      out.writeShort(0); // class attributes
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+} // end ClassAssembler
+
+class PVMJit {
+  // Translates a verified PVM code image into the static method
+  //   run(int[] mem, JitFrame f)
+  // of a hidden JVM class.  The PVM stack stays in mem, so that addresses
+  // taken with LDA and the layout seen by STK are unchanged, but sp, hp and
+  // ps live in JVM locals, branches become JVM branches and local addresses
+  // (fixed once the stack size is known) become constants.
+
+  // JVM local variable slots
+  static final int mem = 0, frame = 1, sp = 2, hp = 3, ps = 4, ops = 5, tos = 6, sos = 7, tmp = 8;
+
+  // JVM opcodes used
+  static final int iconst_0 = 0x03, bipush = 0x10, sipush = 0x11, ldc_w = 0x13,
+      iload = 0x15, aload = 0x19, iaload = 0x2e, istore = 0x36, astore = 0x3a, iastore = 0x4f,
+      iadd = 0x60, isub = 0x64, imul = 0x68, idiv = 0x6c, irem = 0x70, ineg = 0x74,
+      iand = 0x7e, ior = 0x80, iinc = 0x84,
+      ifeq = 0x99, ifne = 0x9a, iflt = 0x9b, ifgt = 0x9d, ifle = 0x9e,
+      if_icmpeq = 0x9f, if_icmpne = 0xa0, if_icmplt = 0xa1, if_icmpge = 0xa2,
+      if_icmpgt = 0xa3, if_icmple = 0xa4, goto_ = 0xa7,
+      dup = 0x59, ladd = 0x61, i2l = 0x85, return_ = 0xb1, getfield = 0xb4, putfield = 0xb5, invokestatic = 0xb8, arraylength = 0xbe;
+
+  static final String runtime = "CalcPVM/PVMRuntime", frameClass = "CalcPVM/JitFrame";
+
+  private static ClassAssembler asm;
+  private static int fp, exit;
+
+  // Code image analysis
+
+  static int length(int op) {
+    // Returns the number of words occupied by an instruction with opcode op
+    switch (op) {
+      case PVM.brn:
+      case PVM.bze:
+      case PVM.dsp:
+      case PVM.lda:
+      case PVM.ldc:
+      case PVM.ldl:
+      case PVM.stl:
+      case PVM.prns:
+        return 2;
+      default:
+        return 1;
+    }
+  }
+
+  static boolean[] leaders(int[] m, int codeLen) {
+    // Verifies the image in m[0 .. codeLen-1] and returns the set of block
+    // leaders (branch targets and fall-through successors of branches), or
+    // null if an operand is missing or a branch lands outside the code or
+    // inside an instruction
+    boolean[] start = new boolean[codeLen + 1], leader = new boolean[codeLen + 1];
+    int pc = 0;
+    while (pc < codeLen) {
+      start[pc] = true;
+      int op = m[pc];
+      if (pc + length(op) > codeLen)
+        return null;
+      pc += length(op);
+    }
+    leader[0] = true;
+    for (pc = 0; pc < codeLen; pc += length(m[pc]))
+      if (m[pc] == PVM.brn || m[pc] == PVM.bze) {
+        int target = m[pc + 1];
+        if (target < 0 || target >= codeLen || !start[target])
+          return null;
+        leader[target] = true;
+        leader[pc + 2] = true;
+      }
+    return leader;
+  }
+
+  // Code emission helpers
+
+  private static void op(int opcode) {
+    asm.u1(opcode);
+  }
+
+  private static void local(int opcode, int slot) {
+    asm.u1(opcode);
+    asm.u1(slot);
+  }
+
+  private static void constant(int value) {
+    if (value >= -1 && value <= 5)
+      op(iconst_0 + value);
+    else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+      op(bipush);
+      asm.u1(value);
+    } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+      op(sipush);
+      asm.u2(value);
+    } else {
+      op(ldc_w);
+      asm.u2(asm.integer(value));
+    }
+  }
+
+  private static void call(String name, String desc) {
+    op(invokestatic);
+    asm.u2(asm.methodRef(runtime, name, desc));
+  }
+
+  private static void setStatus(int status) {
+    constant(status);
+    local(istore, ps);
+  }
+
+  private static void pop() {
+    // Leaves the popped value on the JVM stack; sets badMem at the frame base
+    int ok = asm.newLabel();
+    local(iload, sp);
+    constant(fp);
+    asm.jump(if_icmpne, ok);
+    setStatus(PVM.badMem);
+    asm.place(ok);
+    local(aload, mem);
+    local(iload, sp);
+    op(iaload);
+    op(iinc);
+    asm.u1(sp);
+    asm.u1(1);
+  }
+
+  private static void push() {
+    // Pushes the value on the JVM stack; sets badMem if the stack overflows
+    int ok = asm.newLabel();
+    local(istore, tmp);
+    op(iinc);
+    asm.u1(sp);
+    asm.u1(-1);
+    local(aload, mem);
+    local(iload, sp);
+    local(iload, tmp);
+    op(iastore);
+    local(iload, sp);
+    asm.jump(ifgt, ok);
+    setStatus(PVM.badMem);
+    asm.place(ok);
+  }
+
+  private static void address() {
+    // Strips any reference tag from the address on the JVM stack
+    constant(PVM.addrMask);
+    op(iand);
+  }
+
+  private static void ifInBounds(int slot, int skip) {
+    // Falls through only if address in slot is in bounds and ps is still running
+    int bad = asm.newLabel(), ok = asm.newLabel();
+    local(iload, slot);
+    asm.jump(ifle, bad);
+    local(iload, slot);
+    local(aload, mem);
+    op(arraylength);
+    asm.jump(if_icmplt, ok);
+    asm.place(bad);
+    setStatus(PVM.badMem);
+    asm.place(ok);
+    local(iload, ps);
+    asm.jump(ifne, skip);
+  }
+
+  private static void ifLocalInBounds(int adr, int skip) {
+    // As for ifInBounds, for a local address known when translating; those
+    // within the stack need no check
+    if (adr >= 1 && adr < fp)
+      return;
+    constant(adr);
+    local(istore, sos);
+    ifInBounds(sos, skip);
+  }
+
+  private static void checkLimits(int pcNow) {
+    // Leaves the compiled code if the run has passed one of its limits by
+    // the backward branch at pcNow
+    int ok = asm.newLabel();
+    local(iload, ops);
+    local(aload, frame);
+    op(getfield);
+    asm.u2(asm.fieldRef(frameClass, "due", "I"));
+    asm.jump(if_icmplt, ok);
+    local(aload, frame);
+    local(iload, ops);
+    call("limit", "(L" + frameClass + ";I)I");
+    local(istore, ps);
+    constant(0); // counted into f.ops by limit
+    local(istore, ops);
+    checkStatus(pcNow);
+    asm.place(ok);
+  }
+
+  private static void checkStatus(int pcNow) {
+    // Leaves the compiled code if the instruction at pcNow changed ps
+    int ok = asm.newLabel();
+    local(iload, ps);
+    asm.jump(ifeq, ok);
+    constant(pcNow);
+    asm.jump(goto_, exit);
+    asm.place(ok);
+  }
+
+  private static void binary(int opcode) {
+    pop();
+    local(istore, tos);
+    pop();
+    local(iload, tos);
+    op(opcode);
+    push();
+  }
+
+  private static void compare(int opcode) {
+    int yes = asm.newLabel(), done = asm.newLabel();
+    pop();
+    local(istore, tos);
+    pop();
+    local(iload, tos);
+    asm.jump(opcode, yes);
+    constant(0);
+    asm.jump(goto_, done);
+    asm.place(yes);
+    constant(1);
+    asm.place(done);
+    push();
+  }
+
+  private static boolean emitRun(int[] m, int codeLen, int stackSize) {
+    // Emits run(int[] mem, JitFrame f) for the code in m[0 .. codeLen-1], run
+    // with stackSize words of stack; returns false if the code cannot be
+    // verified or is too large for a single method
+    boolean[] leader = leaders(m, codeLen);
+    if (leader == null)
+      return false;
+    fp = stackSize + 1;
+    exit = asm.newLabel();
+    int[] label = new int[codeLen + 1];
+    int blocks = 0;
+    for (int pc = 0; pc < codeLen; pc++)
+      if (leader[pc]) {
+        label[pc] = asm.newLabel();
+        blocks++;
+      }
+    int badEntry = asm.newLabel();
+
+    // prologue: load registers, count operations from 0, then dispatch on
+    // the entry pc
+    String[] regs = { "sp", "hp", "ps" };
+    int[] slots = { sp, hp, ps };
+    for (int i = 0; i < regs.length; i++) {
+      local(aload, frame);
+      op(getfield);
+      asm.u2(asm.fieldRef(frameClass, regs[i], "I"));
+      local(istore, slots[i]);
+    }
+    constant(0);
+    local(istore, ops);
+    int[] keys = new int[blocks], targets = new int[blocks];
+    blocks = 0;
+    for (int pc = 0; pc < codeLen; pc++)
+      if (leader[pc]) {
+        keys[blocks] = pc;
+        targets[blocks++] = label[pc];
+      }
+    local(aload, frame);
+    op(getfield);
+    asm.u2(asm.fieldRef(frameClass, "pc", "I"));
+    asm.switchTo(keys, targets, badEntry);
+
+    int pc = 0;
+    while (pc < codeLen) {
+      if (leader[pc])
+        asm.place(label[pc]);
+      int pcNow = pc, opcode = m[pc], operand = pc + 1 < codeLen ? m[pc + 1] : 0;
+      pc += length(opcode);
+      op(iinc);
+      asm.u1(ops);
+      asm.u1(1);
+      switch (opcode) {
+        case PVM.nop:
+          break;
+        case PVM.dsp: {
+          int skip = asm.newLabel();
+          local(iload, sp);
+          constant(operand);
+          op(isub);
+          local(istore, sp);
+          ifInBounds(sp, skip);
+          if (operand > 0) {
+            local(aload, mem);
+            local(iload, sp);
+            local(iload, sp);
+            constant(operand);
+            op(iadd);
+            constant(0);
+            op(invokestatic);
+            asm.u2(asm.methodRef("java/util/Arrays", "fill", "([IIII)V"));
+          }
+          asm.place(skip);
+          break;
+        }
+        case PVM.ldc:
+          constant(operand);
+          push();
+          break;
+        case PVM.lda: {
+          int skip = asm.newLabel();
+          ifLocalInBounds(fp - 1 - operand, skip);
+          constant(fp - 1 - operand);
+          push();
+          asm.place(skip);
+          break;
+        }
+        case PVM.ldv:
+          pop();
+          address();
+          local(istore, tos);
+          local(aload, mem);
+          local(iload, tos);
+          op(iaload);
+          push();
+          break;
+        case PVM.sto: {
+          int skip = asm.newLabel();
+          pop();
+          local(istore, tos);
+          pop();
+          address();
+          local(istore, sos);
+          ifInBounds(sos, skip);
+          local(aload, mem);
+          local(iload, sos);
+          local(iload, tos);
+          op(iastore);
+          asm.place(skip);
+          break;
+        }
+        case PVM.ldxa: {
+          int nul = asm.newLabel(), bad = asm.newLabel(), ind = asm.newLabel(), done = asm.newLabel();
+          pop();
+          local(istore, tos);
+          pop();
+          local(istore, sos);
+          local(iload, sos);
+          asm.jump(ifeq, nul);
+          local(iload, sos);
+          constant(~PVM.addrMask);
+          op(iand);
+          constant(PVM.refTag);
+          asm.jump(if_icmpne, bad);
+          local(iload, sos);
+          address();
+          constant(fp); // heap starts just above the stack
+          asm.jump(if_icmplt, bad);
+          local(iload, sos);
+          address();
+          local(iload, hp);
+          asm.jump(if_icmpge, bad);
+          local(iload, tos);
+          asm.jump(iflt, ind);
+          local(iload, tos);
+          local(aload, mem);
+          local(iload, sos);
+          address();
+          op(iaload);
+          asm.jump(if_icmpge, ind);
+          local(iload, sos);
+          local(iload, tos);
+          op(iadd);
+          constant(1);
+          op(iadd);
+          push();
+          asm.jump(goto_, done);
+          asm.place(nul);
+          setStatus(PVM.nullRef);
+          asm.jump(goto_, done);
+          asm.place(bad);
+          setStatus(PVM.badMem);
+          asm.jump(goto_, done);
+          asm.place(ind);
+          setStatus(PVM.badInd);
+          asm.place(done);
+          break;
+        }
+        case PVM.inpi:
+        case PVM.inpb: {
+          int skip = asm.newLabel();
+          pop();
+          address();
+          local(istore, tos);
+          ifInBounds(tos, skip);
+          local(aload, frame);
+          local(aload, mem);
+          local(iload, tos);
+          local(iload, ps);
+          call(opcode == PVM.inpi ? "inpi" : "inpb", "(L" + frameClass + ";[III)I");
+          local(istore, ps);
+          asm.place(skip);
+          break;
+        }
+        case PVM.prni:
+        case PVM.prnb:
+          pop();
+          local(istore, tos);
+          local(aload, frame);
+          local(iload, tos);
+          call(opcode == PVM.prni ? "prni" : "prnb", "(L" + frameClass + ";I)V");
+          break;
+        case PVM.prns:
+          local(aload, frame);
+          constant(operand);
+          local(iload, ps);
+          call("prns", "(L" + frameClass + ";II)I");
+          local(istore, ps);
+          break;
+        case PVM.prnl:
+          local(aload, frame);
+          call("prnl", "(L" + frameClass + ";)V");
+          break;
+        case PVM.neg:
+          pop();
+          op(ineg);
+          push();
+          break;
+        case PVM.add:
+          binary(iadd);
+          break;
+        case PVM.sub:
+          binary(isub);
+          break;
+        case PVM.mul: {
+          int bad = asm.newLabel(), done = asm.newLabel();
+          pop();
+          local(istore, tos);
+          pop();
+          local(istore, sos);
+          local(iload, sos);
+          local(iload, tos);
+          call("overflows", "(II)Z");
+          asm.jump(ifne, bad);
+          local(iload, sos);
+          local(iload, tos);
+          op(imul);
+          push();
+          asm.jump(goto_, done);
+          asm.place(bad);
+          setStatus(PVM.badVal);
+          asm.place(done);
+          break;
+        }
+        case PVM.div:
+        case PVM.rem: {
+          int zero = asm.newLabel(), done = asm.newLabel();
+          pop();
+          local(istore, tos);
+          local(iload, tos);
+          asm.jump(ifeq, zero);
+          pop();
+          local(iload, tos);
+          op(opcode == PVM.div ? idiv : irem);
+          push();
+          asm.jump(goto_, done);
+          asm.place(zero);
+          setStatus(PVM.divZero);
+          asm.place(done);
+          break;
+        }
+        case PVM.not: {
+          int yes = asm.newLabel(), done = asm.newLabel();
+          pop();
+          asm.jump(ifeq, yes);
+          constant(0);
+          asm.jump(goto_, done);
+          asm.place(yes);
+          constant(1);
+          asm.place(done);
+          push();
+          break;
+        }
+        case PVM.and:
+          binary(iand);
+          break;
+        case PVM.or:
+          binary(ior);
+          break;
+        case PVM.ceq:
+          compare(if_icmpeq);
+          break;
+        case PVM.cne:
+          compare(if_icmpne);
+          break;
+        case PVM.clt:
+          compare(if_icmplt);
+          break;
+        case PVM.cle:
+          compare(if_icmple);
+          break;
+        case PVM.cgt:
+          compare(if_icmpgt);
+          break;
+        case PVM.cge:
+          compare(if_icmpge);
+          break;
+        case PVM.brn:
+          if (operand <= pcNow)
+            checkLimits(pcNow);
+          asm.jump(goto_, label[operand]);
+          break;
+        case PVM.bze:
+          pop();
+          local(istore, tos);
+          checkStatus(pcNow);
+          local(iload, tos);
+          if (operand <= pcNow) {
+            int fall = asm.newLabel();
+            asm.jump(ifne, fall);
+            checkLimits(pcNow);
+            asm.jump(goto_, label[operand]);
+            asm.place(fall);
+          } else
+            asm.jump(ifeq, label[operand]);
+          break;
+        case PVM.anew: {
+          int bad = asm.newLabel(), done = asm.newLabel();
+          pop();
+          local(istore, tos);
+          local(aload, frame);
+          local(iload, sp);
+          local(iload, hp);
+          local(iload, tos);
+          call("anew", "(L" + frameClass + ";III)I");
+          local(istore, sos);
+          local(aload, frame); // memory may have grown or been compacted
+          op(getfield);
+          asm.u2(asm.fieldRef(frameClass, "mem", "[I"));
+          local(astore, mem);
+          local(aload, frame);
+          op(getfield);
+          asm.u2(asm.fieldRef(frameClass, "hp", "I"));
+          local(istore, hp);
+          local(iload, sos);
+          asm.jump(ifeq, bad);
+          local(iload, sos);
+          push();
+          asm.jump(goto_, done);
+          asm.place(bad);
+          local(aload, frame);
+          call("exhausted", "(L" + frameClass + ";)I");
+          local(istore, ps);
+          asm.place(done);
+          break;
+        }
+        case PVM.free:
+          pop();
+          local(istore, tos);
+          local(aload, frame);
+          local(iload, tos);
+          local(iload, ps);
+          call("free", "(L" + frameClass + ";II)I");
+          local(istore, ps);
+          local(aload, frame);
+          op(getfield);
+          asm.u2(asm.fieldRef(frameClass, "hp", "I"));
+          local(istore, hp);
+          break;
+        case PVM.halt:
+          setStatus(PVM.finished);
+          break;
+        case PVM.stk:
+          local(aload, frame);
+          local(iload, sp);
+          constant(pcNow);
+          call("stk", "(L" + frameClass + ";II)V");
+          break;
+        case PVM.ldl: {
+          int skip = asm.newLabel();
+          ifLocalInBounds(fp - 1 - operand, skip);
+          local(aload, mem);
+          constant(fp - 1 - operand);
+          op(iaload);
+          push();
+          asm.place(skip);
+          break;
+        }
+        case PVM.stl: {
+          int skip = asm.newLabel();
+          ifLocalInBounds(fp - 1 - operand, skip);
+          pop();
+          local(istore, tos);
+          local(aload, mem);
+          constant(fp - 1 - operand);
+          local(iload, tos);
+          op(iastore);
+          asm.place(skip);
+          break;
+        }
+        case PVM.inc:
+        case PVM.dec: {
+          int skip = asm.newLabel();
+          pop();
+          address();
+          local(istore, tos);
+          ifInBounds(tos, skip);
+          local(aload, mem);
+          local(iload, tos);
+          local(aload, mem);
+          local(iload, tos);
+          op(iaload);
+          constant(opcode == PVM.inc ? 1 : -1);
+          op(iadd);
+          op(iastore);
+          asm.place(skip);
+          break;
+        }
+        default:
+          setStatus(PVM.badOp);
+          break;
+      }
+      if (opcode != PVM.nop && opcode != PVM.brn && opcode != PVM.bze)
+        checkStatus(pcNow);
+    }
+
+    // falling off the end of the code is a bad address at codeLen
+    op(iinc);
+    asm.u1(ops);
+    asm.u1(1);
+    asm.place(badEntry);
+    setStatus(PVM.badAdr);
+    constant(codeLen);
+
+    // epilogue: pcNow is on the JVM stack
+    asm.place(exit);
+    local(istore, tmp);
+    String[] outs = { "sp", "hp", "ps", "pc" };
+    int[] from = { sp, hp, ps, tmp };
+    for (int i = 0; i < outs.length; i++) {
+      local(aload, frame);
+      local(iload, from[i]);
+      op(putfield);
+      asm.u2(asm.fieldRef(frameClass, outs[i], "I"));
+    }
+    local(aload, frame); // f.ops += ops
+    op(dup);
+    op(getfield);
+    asm.u2(asm.fieldRef(frameClass, "ops", "J"));
+    local(iload, ops);
+    op(i2l);
+    op(ladd);
+    op(putfield);
+    asm.u2(asm.fieldRef(frameClass, "ops", "J"));
+    op(return_);
+
+    return asm.endMethod("run", "([IL" + frameClass + ";)V", 10, tmp + 1);
+  }
+
+  static synchronized byte[] translate(int[] m, int codeLen, int stackSize) {
+    // Returns the bytes of a class whose run method executes the code in
+    // m[0 .. codeLen-1], or null if it cannot be translated
+    asm = new ClassAssembler();
+    byte[] bytes = emitRun(m, codeLen, stackSize) ? asm.toClass("CalcPVM/PVMCode") : null;
+    asm = null;
+    return bytes;
+  }
+
+  static synchronized byte[] standalone(CodeImage image, int stackSize, int heapSize, int maxMemory,
+      boolean freeList, String className) {
+    // As for translate, but adds a main method that runs the code with
+    // PVMRuntime alone, taking the data and results file names from the
+    // command line
+    String literals = PVMRuntime.encodeWords(image.literals(), image.litLen);
+    if (3 * literals.length() > 65535)
+      return null; // may not fit a single constant
+    asm = new ClassAssembler();
+    byte[] bytes = null;
+    if (emitRun(image.code(), image.codeLen, stackSize)) {
+      String frameType = "L" + frameClass + ";";
+      local(aload, 0);
+      op(ldc_w);
+      asm.u2(asm.string(literals));
+      constant(stackSize);
+      constant(heapSize);
+      constant(maxMemory);
+      constant(freeList ? 1 : 0);
+      call("start", "([Ljava/lang/String;Ljava/lang/String;IIIZ)" + frameType);
+      local(astore, 1);
+      local(aload, 1);
+      op(getfield);
+      asm.u2(asm.fieldRef(frameClass, "mem", "[I"));
+      local(aload, 1);
+      op(invokestatic);
+      asm.u2(asm.methodRef(className, "run", "([I" + frameType + ")V"));
+      local(aload, 1);
+      local(aload, 0);
+      call("finish", "(" + frameType + "[Ljava/lang/String;)V");
+      op(return_);
+      if (asm.endMethod("main", "([Ljava/lang/String;)V", 8, 2))
+        bytes = asm.toClass(className);
+    }
+    asm = null;
+    return bytes;
+  }
+
+  private static void addEntry(JarOutputStream jar, String name, InputStream in) throws IOException {
+    jar.putNextEntry(new JarEntry(name));
+    in.transferTo(jar);
+    in.close();
+    jar.closeEntry();
+  }
+
+  private static void addPackage(JarOutputStream jar, String dir) throws IOException {
+    // Copies every class of the package held in dir from wherever the class
+    // loader found it, a directory or a jar
+    URL url = PVMJit.class.getClassLoader().getResource(dir + "InFile.class");
+    if (url == null)
+      throw new FileNotFoundException(dir);
+    URLConnection connection = url.openConnection();
+    if (connection instanceof JarURLConnection) {
+      JarFile from = ((JarURLConnection) connection).getJarFile();
+      for (JarEntry e : Collections.list(from.entries()))
+        if (e.getName().startsWith(dir) && e.getName().endsWith(".class"))
+          addEntry(jar, e.getName(), from.getInputStream(e));
+    } else
+      try {
+        for (File f : new File(url.toURI()).getParentFile().listFiles())
+          if (f.getName().endsWith(".class"))
+            addEntry(jar, dir + f.getName(), new FileInputStream(f));
+      } catch (URISyntaxException e) {
+        throw new IOException(e);
+      }
+  }
+
+  public static boolean writeJar(String fileName, CodeImage image) {
+    // Writes an executable jar holding image compiled ahead of time for the
+    // default memory layout, the run time support and the I/O library.
+    // Returns false if the image cannot be compiled or the jar cannot be
+    // written
+    String className = "CalcPVM/Program";
+    byte[] bytes = standalone(image, PVM.stackSize, PVM.heapSize, PVM.maxMemory, PVM.freeList, className);
+    if (bytes == null)
+      return false;
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, className.replace('/', '.'));
+    try (JarOutputStream jar = new JarOutputStream(new FileOutputStream(fileName), manifest)) {
+      addEntry(jar, className + ".class", new ByteArrayInputStream(bytes));
+      ClassLoader loader = PVMJit.class.getClassLoader();
+      for (String support : new String[] { "CalcPVM/JitFrame.class", "CalcPVM/PVMRuntime.class",
+          "CalcPVM/HeapCollector.class", "CalcPVM/Words.class", "CalcPVM/WordArray.class",
+          "CalcPVM/FreeListHeap.class", "CalcPVM/RunLimits.class", "CalcPVM/ResultsSink.class", "CalcPVM/EncodedLiterals.class", "CalcPVM/ByteRing.class",
+          "CalcPVM/DataReader.class" })
+        addEntry(jar, support, loader.getResourceAsStream(support));
+      addPackage(jar, "library/");
+    } catch (IOException e) {
+      System.err.println("Could not write " + fileName + ": " + e.getMessage());
+      return false;
+    }
+    return true;
+  }
+
+  static synchronized MethodHandle compile(int[] m, int codeLen, int stackSize) {
+    // Returns a handle to the translation of the code in m, or null if it
+    // cannot be translated
+    byte[] bytes = translate(m, codeLen, stackSize);
+    if (bytes == null)
+      return null;
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+      return lookup.findStatic(lookup.lookupClass(), "run",
+          MethodType.methodType(void.class, int[].class, JitFrame.class));
+    } catch (ReflectiveOperationException | LinkageError e) {
+      System.err.println("JIT translation rejected: " + e);
+      return null;
+    }
+  }
+
+  static void run(MethodHandle code, JitFrame f) {
+    // Runs compiled code from f.pc until ps changes
+    try {
+      code.invokeExact(f.mem, f);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+} // end PVMJit
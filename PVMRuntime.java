@@ -0,0 +1,359 @@
+package CalcPVM;
+
+import java.util.*;
+import library.*;
+
+class JitFrame {
+  // Registers, status and I/O handed between the emulator and compiled code
+  public int sp; // Stack pointer
+  public int hp; // Heap pointer
+  public int pc; // Entry point on the way in, pcNow of the last instruction on the way out
+  public int ps; // Program status
+  public long ops; // Operations executed before compiled code was entered, and by the time it left
+  public int due; // Operations compiled code may execute, after entry or a check, before checking limits
+  public int fp; // Local frame pointer
+  public int stackBase; // Initial stack pointer
+  public int maxMemory; // Limit on mem.length
+  public int[] mem; // Memory the code runs in, replaced when the heap grows
+  public int[] literals; // String literals of the image
+  public EncodedLiterals encoded; // The same, encoded for ResultsSink
+  public HeapCollector gc; // Collector run when the heap is full
+  public FreeListHeap heap; // Allocator used instead, if not null
+  public RunLimits limits; // Checked at backward branches
+  public InFile data;
+  public OutFile results;
+} // end JitFrame
+
+class RunLimits {
+  // Limits on one run: the operations it may execute, the time it may take
+  // and the heap it may use.  The interpreter compares ops with budget at
+  // each backward branch and calls check() once it is reached, so a run that
+  // loops stops soon after passing a limit, while code without loops is
+  // bounded by the length of the image anyway.  Compiled code counts in an
+  // int from the time it was entered, so it compares that with due(), which
+  // is never more than Integer.MAX_VALUE; operations are counted in longs
+  // everywhere else, so neither the count nor the checks wrap round.  Each
+  // run has its own limits, so concurrent runs are limited independently
+
+  static final int checkInterval = 1 << 16; // operations between looks at the clock
+
+  public final long maxSteps; // operations allowed, if not 0
+  public final int maxHeap; // words of heap allowed, if not 0
+  private final long deadline; // System.nanoTime() at which time is up
+  private final boolean timed;
+  public long budget; // ops at which check() is next due
+
+  public RunLimits(long maxSteps, int timeLimit, int maxHeap) {
+    // Limits a run starting now; each limit applies unless it is 0
+    this.maxSteps = Math.max(maxSteps, 0);
+    this.maxHeap = Math.max(maxHeap, 0);
+    timed = timeLimit > 0;
+    deadline = System.nanoTime() + timeLimit * 1000000L;
+    budget = nextCheck(0);
+  }
+
+  private long nextCheck(long ops) {
+    long next = timed ? ops + checkInterval : Long.MAX_VALUE;
+    return maxSteps > 0 ? Math.min(next, maxSteps) : next;
+  }
+
+  public int due(long ops) {
+    // Returns the operations that may follow ops before check() is due, as
+    // far as an int can count
+    return (int) Math.max(0, Math.min(budget - ops, Integer.MAX_VALUE));
+  }
+
+  public int check(long ops) {
+    // Returns the status of a run that has executed ops operations so far,
+    // and sets the budget for the next check
+    if (maxSteps > 0 && ops >= maxSteps)
+      return PVM.stepLimit;
+    if (timed && System.nanoTime() - deadline >= 0)
+      return PVM.timeOut;
+    budget = nextCheck(ops);
+    return PVM.running;
+  }
+
+  public int heapLimit(int heapBase, int maxMemory) {
+    // Returns the limit on memory for a machine whose heap starts at heapBase
+    return maxHeap > 0 ? (int) Math.min((long) heapBase + maxHeap, maxMemory) : maxMemory;
+  }
+
+  public int exhausted() {
+    // Returns the status for an allocation that does not fit
+    return maxHeap > 0 ? PVM.heapLimit : PVM.badAll;
+  }
+} // end RunLimits
+
+
+class PVMRuntime {
+  // Run time support shared by the emulator, the JIT translation and
+  // ahead-of-time compiled programs.  Only the compile-time constants of PVM
+  // are used, so this class can be shipped without the interpreter.
+
+  // Support called from compiled code
+
+  static int inpi(JitFrame f, int[] m, int adr, int status) {
+    if (f.results instanceof ResultsSink)
+      ((ResultsSink) f.results).prompt();
+    m[adr] = f.data.readInt();
+    return f.data.error() ? PVM.badData : status;
+  }
+
+  static int inpb(JitFrame f, int[] m, int adr, int status) {
+    if (f.results instanceof ResultsSink)
+      ((ResultsSink) f.results).prompt();
+    m[adr] = f.data.readBoolean() ? 1 : 0;
+    return f.data.error() ? PVM.badData : status;
+  }
+
+  static void prni(JitFrame f, int value) {
+    f.results.write(value, 0);
+  }
+
+  static void prnb(JitFrame f, int value) {
+    if (value != 0)
+      f.results.write(" true  ");
+    else
+      f.results.write(" false ");
+  }
+
+  static int prns(JitFrame f, int loop, int status) {
+    if (f.results instanceof ResultsSink)
+      return ((ResultsSink) f.results).writeLiteral(f.encoded, loop) ? status : PVM.badMem;
+    int[] literals = f.literals;
+    if (loop < 0 || loop >= literals.length)
+      status = PVM.badMem;
+    while (status == PVM.running && literals[loop] != 0) {
+      f.results.write((char) literals[loop]);
+      loop++;
+      if (loop >= literals.length)
+        status = PVM.badMem;
+    }
+    return status;
+  }
+
+  static int anew(JitFrame f, int sp, int hp, int size) {
+    // Allocates an array of size elements, collecting garbage if the heap is
+    // full; returns its reference, or 0 if there is no room.  f.mem and f.hp
+    // are left as they now are
+    if (f.heap != null)
+      return allocate(f, f.heap, size);
+    int[] room = size <= 0 ? null : grow(f.mem, hp, size + 1, f.maxMemory);
+    f.hp = hp;
+    if (room == null && size > 0) { // use a hole left by the last collection, or collect
+      int adr = f.gc.reuse(new WordArray(f.mem), size);
+      if (adr != 0)
+        return adr | PVM.refTag;
+      hp = f.gc.collect(new WordArray(f.mem), sp, f.stackBase, f.stackBase, hp);
+      room = grow(f.mem, hp, size + 1, f.maxMemory);
+      f.hp = hp;
+      if (room == null) {
+        adr = f.gc.reuse(new WordArray(f.mem), size);
+        return adr == 0 ? 0 : adr | PVM.refTag;
+      }
+    }
+    if (room == null)
+      return 0;
+    f.mem = room;
+    room[hp] = size;
+    f.hp = hp + size + 1;
+    return hp | PVM.refTag;
+  }
+
+  static int allocate(JitFrame f, FreeListHeap heap, int size) {
+    // As for anew, from a free-list heap
+    int adr = size <= 0 ? 0 : heap.allocate(f.mem, size, Math.min(f.mem.length, f.maxMemory));
+    if (adr == 0 && size > 0) {
+      int[] room = grow(f.mem, heap.top, FreeListHeap.need(size), f.maxMemory);
+      if (room != null) {
+        f.mem = room;
+        adr = heap.allocate(f.mem, size, Math.min(f.mem.length, f.maxMemory));
+      }
+    }
+    f.hp = heap.top;
+    return adr == 0 ? 0 : adr | PVM.refTag;
+  }
+
+  static int limit(JitFrame f, int ops) {
+    // Called at a backward branch once the ops compiled code has executed
+    // since it was entered or last called this reach f.due; adds them to
+    // f.ops, after which the code counts from 0 again
+    f.ops += ops;
+    int status = f.limits.check(f.ops);
+    f.due = f.limits.due(f.ops);
+    return status;
+  }
+
+  static int exhausted(JitFrame f) {
+    return f.limits.exhausted();
+  }
+
+  static int free(JitFrame f, int ref, int status) {
+    // Frees the array with reference ref unless it is null; returns the new
+    // status and leaves f.hp as it now is
+    if (ref == 0)
+      return status;
+    if (f.heap == null)
+      return isArray(ref, f.stackBase, f.hp) ? status : PVM.badMem;
+    status = f.heap.free(f.mem, ref);
+    f.hp = f.heap.top;
+    return status;
+  }
+
+  static boolean isArray(int ref, int heapBase, int hp) {
+    // True if ref is tagged as a reference and lies within the heap
+    int adr = ref & PVM.addrMask;
+    return (ref & ~PVM.addrMask) == PVM.refTag && adr >= heapBase && adr < hp;
+  }
+
+  static void prnl(JitFrame f) {
+    f.results.writeLine();
+  }
+
+  static boolean overflows(int sos, int tos) {
+    return tos != 0 && Math.abs(sos) > PVM.maxInt / Math.abs(tos);
+  }
+
+  static void stk(JitFrame f, int spNow, int pcNow) {
+    stackDump(f.results, f.mem, pcNow, f.fp, spNow, f.stackBase);
+  }
+
+  static void stackDump(OutFile results, int[] mem, int pcNow, int fp, int sp, int stackBase) {
+    // Dump local variable and stack area - useful for debugging
+    int onLine = 0;
+    results.write("\nStack dump at " + pcNow);
+    results.write(" FP:");
+    results.write(fp, 4);
+    results.write(" SP:");
+    results.writeLine(sp, 4);
+    for (int i = stackBase - 1; i >= sp; i--) {
+      results.write(i, 7);
+      results.write(mem[i], 5);
+      onLine++;
+      if (onLine % 8 == 0)
+        results.writeLine();
+    }
+    results.writeLine();
+  } // PVMRuntime.stackDump
+
+  static String message(int ps) {
+    // Returns the description of program status ps
+    switch (ps) {
+      case PVM.finished:
+        return "Finished";
+      case PVM.badMem:
+        return "Memory violation";
+      case PVM.badData:
+        return "Invalid data";
+      case PVM.noData:
+        return "No more data";
+      case PVM.divZero:
+        return "Division by zero";
+      case PVM.badOp:
+        return "Illegal opcode";
+      case PVM.badInd:
+        return "Subscript out of range";
+      case PVM.badVal:
+        return "Value out of range";
+      case PVM.badAdr:
+        return "Bad address";
+      case PVM.badAll:
+        return "Heap allocation error";
+      case PVM.nullRef:
+        return "Null reference";
+      case PVM.freed:
+        return "Freed array used";
+      case PVM.stepLimit:
+        return "Step limit reached";
+      case PVM.timeOut:
+        return "Time limit exceeded";
+      case PVM.heapLimit:
+        return "Heap limit exceeded";
+      default:
+        return "Interpreter error!";
+    }
+  } // PVMRuntime.message
+
+  static void postMortem(OutFile results, int ps, int pcNow) {
+    postMortem(results, ps, pcNow, "");
+  }
+
+  static void postMortem(OutFile results, int ps, int pcNow, String where) {
+    // Reports run time error and position, followed by where in the source
+    // that is, if known
+    results.writeLine();
+    results.write(message(ps));
+    results.writeLine(" at " + pcNow + where);
+  } // PVMRuntime.postMortem
+
+  static int[] grow(int[] mem, int hp, int n, int maxMemory) {
+    // Returns mem, or a copy at least twice as long, with room for n more
+    // words of heap above hp, or null if that would exceed maxMemory words
+    if ((long) hp + n > maxMemory)
+      return null;
+    if ((long) hp + n <= mem.length)
+      return mem;
+    long length = Math.max(2L * mem.length, (long) hp + n);
+    return Arrays.copyOf(mem, (int) Math.min(length, maxMemory));
+  }
+
+  // Literals embedded in ahead-of-time compiled programs
+
+  static String encodeWords(int[] words, int n) {
+    // Packs words[0 .. n-1] into a string constant, two chars per word
+    StringBuilder packed = new StringBuilder(2 * n);
+    for (int i = 0; i < n; i++) {
+      packed.append((char) (words[i] >>> 16));
+      packed.append((char) words[i]);
+    }
+    return packed.toString();
+  }
+
+  static int[] decodeWords(String packed) {
+    // Unpacks words packed by encodeWords
+    int[] words = new int[packed.length() / 2];
+    for (int i = 0; i < words.length; i++)
+      words[i] = packed.charAt(2 * i) << 16 | packed.charAt(2 * i + 1);
+    return words;
+  }
+
+  public static JitFrame start(String[] args, String literals, int stackSize, int heapSize, int maxMemory,
+      boolean freeList) {
+    // Prepares memory, registers and files for an ahead-of-time compiled
+    // program run as: java -jar program.jar [data file [results file]]
+    JitFrame f = new JitFrame();
+    f.stackBase = stackSize + 1;
+    f.mem = new int[f.stackBase + heapSize];
+    f.literals = decodeWords(literals);
+    f.encoded = new EncodedLiterals(f.literals, f.literals.length);
+    f.maxMemory = Math.min(PVM.refTag, maxMemory);
+    f.gc = new HeapCollector();
+    f.heap = freeList ? new FreeListHeap(f.stackBase, false) : null;
+    f.limits = new RunLimits(0, 0, 0);
+    f.due = f.limits.due(0);
+    f.hp = f.stackBase;
+    f.sp = f.stackBase;
+    f.fp = f.stackBase;
+    f.pc = 0;
+    f.ps = PVM.running;
+    f.data = new DataReader(args.length > 0 ? args[0] : "", false);
+    f.results = new ResultsSink(args.length > 1 ? args[1] : "");
+    return f;
+  }
+
+  public static void finish(JitFrame f, String[] args) {
+    // Reports the outcome of a run begun by start, as PVM.interpret would
+    if (f.results instanceof ResultsSink)
+      ((ResultsSink) f.results).sync();
+    System.out.println("\n\n" + f.ops + " operations. ");
+    if (f.gc.collections > 0)
+      System.out.println(f.gc.report());
+    if (f.heap != null)
+      System.out.println(f.heap.report());
+    if (f.ps != PVM.finished)
+      postMortem(f.results, f.ps, f.pc);
+    f.results.close();
+  }
+
+} // end PVMRuntime
@@ -0,0 +1,102 @@
+package CalcPVM;
+
+import java.io.*;
+import java.util.*;
+
+class Profiler {
+  // Execution counts for one interpreted run: the interpreter bumps the count
+  // for the pc of each instruction it executes, and the counts per opcode and
+  // per basic block are gathered from these when the report is written.  A
+  // machine without a profiler pays only a null test per instruction
+
+  final int[] code;
+  final int codeLen;
+  final long[] counts; // instructions executed at each pc
+
+  public Profiler(CodeImage image) {
+    code = image.code();
+    codeLen = image.codeLen;
+    counts = new long[codeLen + 1];
+  }
+
+  private int opcode(int pc) {
+    // Returns the opcode at pc, forced into range as listCode does
+    return Math.floorMod(code[pc], PVM.nul + 1);
+  }
+
+  public long[] opcodeCounts() {
+    // Returns the instructions executed for each opcode
+    long[] byOp = new long[PVM.nul + 1];
+    for (int pc = 0; pc < codeLen; pc++)
+      byOp[opcode(pc)] += counts[pc];
+    return byOp;
+  }
+
+  public int[] blocks() {
+    // Returns the pc at which each basic block starts, in code order, then
+    // codeLen.  Code that cannot be verified is taken as a single block
+    boolean[] leader = PVMJit.leaders(code, codeLen);
+    int n = 0;
+    int[] start = new int[codeLen + 1];
+    for (int pc = 0; pc < codeLen; pc++)
+      if (leader == null ? pc == 0 : leader[pc])
+        start[n++] = pc;
+    start[n++] = codeLen;
+    return Arrays.copyOf(start, n);
+  }
+
+  private static Integer[] byCount(long[] value, int n) {
+    // Returns the indices 0 .. n-1 of the non-zero values, largest first
+    ArrayList<Integer> order = new ArrayList<Integer>();
+    for (int i = 0; i < n; i++)
+      if (value[i] != 0)
+        order.add(i);
+    order.sort((a, b) -> Long.compare(value[b], value[a]));
+    return order.toArray(new Integer[0]);
+  }
+
+  private static String percent(long part, long whole) {
+    return String.format("%5.1f%%", whole == 0 ? 0.0 : 100.0 * part / whole);
+  }
+
+  public void write(String reportName, String stacksName) throws IOException {
+    // Writes the report to reportName and the counts per instruction, within
+    // their blocks, to stacksName as collapsed stacks for flame graphs
+    long total = 0;
+    for (long c : counts)
+      total += c;
+    long[] byOp = opcodeCounts();
+    int[] start = blocks();
+    int blocks = start.length - 1;
+    long[] entered = new long[blocks], executed = new long[blocks];
+    for (int b = 0; b < blocks; b++) {
+      entered[b] = counts[start[b]];
+      for (int pc = start[b]; pc < start[b + 1]; pc++)
+        executed[b] += counts[pc];
+    }
+
+    try (PrintWriter report = new PrintWriter(new BufferedWriter(new FileWriter(reportName)))) {
+      report.printf("Profile of %d operations%n%nOperations by opcode%n", total);
+      for (int op : byCount(byOp, byOp.length))
+        report.printf("  %-8s %14d %s%n", PVM.mnemonics[op], byOp[op], percent(byOp[op], total));
+      report.printf("%nBasic blocks by operations%n");
+      for (int b : byCount(executed, blocks))
+        report.printf("  %5d .. %5d  entered %12d times %14d ops %s%n", start[b], start[b + 1] - 1,
+            entered[b], executed[b], percent(executed[b], total));
+      report.printf("%nOperations by pc%n");
+      for (int pc = 0; pc < codeLen; pc++)
+        if (counts[pc] != 0)
+          report.printf("  { %5d } %-8s %14d %s%n", pc, PVM.mnemonics[opcode(pc)], counts[pc],
+              percent(counts[pc], total));
+    }
+
+    try (PrintWriter stacks = new PrintWriter(new BufferedWriter(new FileWriter(stacksName)))) {
+      for (int b = 0; b < blocks; b++)
+        for (int pc = start[b]; pc < start[b + 1]; pc++)
+          if (counts[pc] != 0)
+            stacks.printf("program;block %d-%d;%d %s %d%n", start[b], start[b + 1] - 1, pc,
+                PVM.mnemonics[opcode(pc)], counts[pc]);
+    }
+  }
+
+} // end Profiler
@@ -0,0 +1,378 @@
+package CalcPVM;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.concurrent.locks.*;
+import library.*;
+
+class EncodedLiterals {
+  // The literal segment of an image encoded once as bytes, so that PRNS can
+  // copy a whole string at a time
+
+  final int length; // words of literals
+  final byte[] bytes; // every word encoded in turn (the zeros as nothing)
+  final int[] offset; // offset in bytes of each word, and of the end
+  final int[] end; // index of the zero ending the string at each word, or length
+
+  EncodedLiterals(int[] literals, int length) {
+    this.length = length;
+    offset = new int[length + 1];
+    end = new int[length];
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream(length);
+    Charset charset = Charset.defaultCharset();
+    for (int i = 0; i < length; i++) {
+      offset[i] = encoded.size();
+      if (literals[i] != 0) {
+        if (literals[i] < 0x80)
+          encoded.write(literals[i]);
+        else
+          encoded.writeBytes(String.valueOf((char) literals[i]).getBytes(charset));
+      }
+    }
+    offset[length] = encoded.size();
+    bytes = encoded.toByteArray();
+    for (int i = length - 1, zero = length; i >= 0; i--) {
+      if (literals[i] == 0)
+        zero = i;
+      end[i] = zero;
+    }
+  }
+} // end EncodedLiterals
+
+class ByteRing {
+  // Lock-free ring buffer of bytes with a single producer and a single
+  // consumer.  Each side owns one position and only reads the other's, so
+  // volatile positions are all the synchronization needed.  A side that must
+  // wait publishes itself in its own field, checks again and parks until the
+  // other moves its position and unparks it; since both the position and the
+  // field are volatile, either the waiter sees the move or the mover sees the
+  // waiter, so no wake is lost
+
+  private final byte[] ring;
+  private final int mask;
+  private volatile long head = 0, tail = 0; // consumed and produced so far
+  private volatile Thread producer, consumer; // each side while parked for the other, if it is
+  volatile boolean closed = false;
+
+  ByteRing(int capacity) {
+    // capacity must be a power of two
+    ring = new byte[capacity];
+    mask = capacity - 1;
+  }
+
+  private static void wake(Thread t) {
+    if (t != null)
+      LockSupport.unpark(t);
+  }
+
+  void put(byte[] b, int from, int n) {
+    // Copies b[from .. from+n-1] in, waiting while the ring is full
+    while (n > 0) {
+      if (tail - head == ring.length) {
+        producer = Thread.currentThread();
+        while (tail - head == ring.length)
+          LockSupport.park(this);
+        producer = null;
+      }
+      long free = ring.length - (tail - head);
+      int at = (int) tail & mask;
+      int k = (int) Math.min(Math.min(n, free), ring.length - at);
+      System.arraycopy(b, from, ring, at, k);
+      tail += k; // only the producer writes tail
+      from += k;
+      n -= k;
+      wake(consumer);
+    }
+  }
+
+  ByteBuffer take() {
+    // Returns the next contiguous bytes to consume, waiting for some, or null
+    // once the ring is closed and empty.  They stay in place until consumed
+    if (tail == head && !closed) {
+      consumer = Thread.currentThread();
+      while (tail == head && !closed)
+        LockSupport.park(this);
+      consumer = null;
+    }
+    long available = tail - head;
+    if (available == 0)
+      return null; // closed
+    int at = (int) head & mask;
+    return ByteBuffer.wrap(ring, at, (int) Math.min(available, ring.length - at));
+  }
+
+  void consumed(int n) {
+    head += n; // only the consumer writes head
+    wake(producer);
+  }
+
+  void drain() {
+    // Waits until everything put has been consumed
+    if (head != tail) {
+      producer = Thread.currentThread();
+      while (head != tail)
+        LockSupport.park(this);
+      producer = null;
+    }
+  }
+
+  void close() {
+    closed = true;
+    wake(consumer);
+  }
+} // end ByteRing
+
+public class ResultsSink extends OutFile {
+  // Results file that gathers output in a reusable byte buffer and writes it
+  // in large blocks, through a FileChannel for a named file or to System.out
+  // otherwise.  Integers are formatted two digits at a time and literals are
+  // copied as already encoded, so output allocates nothing.  Output to the
+  // console is also flushed by prompt(), before input, and by sync() at the
+  // end of a run.
+  // Only the writes made by the PVM and its run time are buffered.
+  //
+  // An asynchronous sink hands each full buffer to a ByteRing instead, which
+  // a writer thread drains, so the program only waits when the backlog of
+  // ringSize bytes is full.  sync() then waits for the backlog to be written,
+  // whether to the console or not, so that everything a run produced is out
+  // when it halts, traps, is saved or stops in the debugger; input does not
+  // wait for it
+
+  static final int bufferSize = 1 << 16;
+  static final int ringSize = 1 << 22;
+  private static final byte[] digitPairs = new byte[200];
+  private static final byte[] newLine = System.lineSeparator().getBytes();
+
+  static {
+    for (int i = 0; i < 100; i++) {
+      digitPairs[2 * i] = (byte) ('0' + i / 10);
+      digitPairs[2 * i + 1] = (byte) ('0' + i % 10);
+    }
+  }
+
+  private final byte[] buffer = new byte[bufferSize];
+  private final byte[] digits = new byte[11]; // an int, sign included
+  private int count = 0;
+  private long flushed = 0; // bytes passed on before those in buffer
+  private final FileChannel channel; // null for the console
+  private volatile boolean failed = false;
+  private ByteRing backlog; // output not yet written, if asynchronous
+  private Thread writer; // writing it
+
+  public ResultsSink(String fileName) {
+    this(fileName, false);
+  }
+
+  public ResultsSink(String fileName, boolean async) {
+    // Opens fileName for results, or the console if it is null or empty,
+    // writing on another thread if async
+    FileChannel opened = null;
+    if (fileName != null && !fileName.equals(""))
+      try {
+        opened = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      } catch (IOException | InvalidPathException e) {
+        failed = true;
+      }
+    channel = opened;
+    if (async) {
+      backlog = new ByteRing(ringSize);
+      writer = new Thread(() -> {
+        ByteBuffer out;
+        while ((out = backlog.take()) != null) {
+          int n = out.remaining();
+          writeOut(out);
+          backlog.consumed(n);
+        }
+      }, "PVM results writer");
+      writer.setDaemon(true);
+      writer.start();
+    }
+  }
+
+  public boolean openError() {
+    return failed;
+  }
+
+  private void put(byte[] b, int from, int n) {
+    // Appends b[from .. from+n-1], flushing as the buffer fills
+    while (n > 0) {
+      if (count == buffer.length)
+        flush();
+      int k = Math.min(n, buffer.length - count);
+      System.arraycopy(b, from, buffer, count, k);
+      count += k;
+      from += k;
+      n -= k;
+    }
+  }
+
+  private void put(int b) {
+    if (count == buffer.length)
+      flush();
+    buffer[count++] = (byte) b;
+  }
+
+  private int format(int value) {
+    // Leaves the decimal digits of value at the end of digits; returns how
+    // many there are
+    int at = digits.length;
+    long v = value; // -Integer.MIN_VALUE does not fit an int
+    if (v < 0)
+      v = -v;
+    while (v >= 100) {
+      int pair = (int) (v % 100) * 2;
+      v /= 100;
+      digits[--at] = digitPairs[pair + 1];
+      digits[--at] = digitPairs[pair];
+    }
+    if (v >= 10) {
+      digits[--at] = digitPairs[(int) v * 2 + 1];
+      digits[--at] = digitPairs[(int) v * 2];
+    } else
+      digits[--at] = (byte) ('0' + v);
+    if (value < 0)
+      digits[--at] = '-';
+    return digits.length - at;
+  }
+
+  private void pad(int n) {
+    for (; n > 0; n--)
+      put(' ');
+  }
+
+  public void write(int i, int width) {
+    // Writes i right justified in width places, or left justified in -width
+    int n = format(i);
+    if (width > n)
+      pad(width - n);
+    put(digits, digits.length - n, n);
+    if (-width > n)
+      pad(-width - n);
+  }
+
+  public void write(int i) {
+    put(' ');
+    write(i, 0);
+  }
+
+  public void write(char c) {
+    if (c < 0x80)
+      put(c);
+    else
+      write(String.valueOf(c));
+  }
+
+  public void write(String s) {
+    for (int i = 0; i < s.length(); i++)
+      if (s.charAt(i) >= 0x80) {
+        byte[] b = s.getBytes();
+        put(b, 0, b.length);
+        return;
+      }
+    for (int i = 0; i < s.length(); i++)
+      put(s.charAt(i));
+  }
+
+  public void write(String s, int width) {
+    if (width > s.length())
+      pad(width - s.length());
+    write(s);
+    if (-width > s.length())
+      pad(-width - s.length());
+  }
+
+  public void writeLine() {
+    put(newLine, 0, newLine.length);
+  }
+
+  public void writeLine(String s) {
+    write(s);
+    writeLine();
+  }
+
+  public void writeLine(int i, int width) {
+    write(i, width);
+    writeLine();
+  }
+
+  public boolean writeLiteral(EncodedLiterals literals, int index) {
+    // Writes the string starting at word index of literals; false if index
+    // is out of range or the string runs off the end
+    if (index < 0 || index >= literals.length)
+      return false;
+    int end = literals.end[index];
+    put(literals.bytes, literals.offset[index], literals.offset[end] - literals.offset[index]);
+    return end < literals.length;
+  }
+
+  private void writeOut(ByteBuffer out) {
+    // Writes out the bytes remaining in out
+    if (channel == null) {
+      System.out.write(out.array(), out.arrayOffset() + out.position(), out.remaining());
+      System.out.flush();
+    } else if (!failed)
+      try {
+        while (out.hasRemaining())
+          channel.write(out);
+      } catch (IOException e) {
+        failed = true;
+      }
+  }
+
+  public void flush() {
+    // Writes out whatever is buffered, or passes it to the writer thread
+    if (count == 0)
+      return;
+    if (backlog != null)
+      backlog.put(buffer, 0, count);
+    else
+      writeOut(ByteBuffer.wrap(buffer, 0, count));
+    flushed += count;
+    count = 0;
+  }
+
+  public long size() {
+    // Returns the number of bytes written so far
+    return flushed + count;
+  }
+
+  public void prompt() {
+    // Flushes output for the console before input, so that prompts appear;
+    // output to a file, and any backlog, is left to be written as it would be
+    if (channel == null)
+      flush();
+  }
+
+  public void sync() {
+    // Flushes output for the console, which other output may share, and
+    // waits for any writer thread to catch up
+    if (backlog != null) {
+      flush();
+      backlog.drain();
+    } else if (channel == null)
+      flush();
+  }
+
+  public void close() {
+    flush();
+    if (backlog != null) {
+      backlog.close();
+      try {
+        writer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (channel != null)
+      try {
+        channel.close();
+      } catch (IOException e) {
+        failed = true;
+      }
+  }
+
+} // end ResultsSink
@@ -0,0 +1,82 @@
+package CalcPVM;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+class SamplingProfiler {
+  // Estimates where an interpreted run spends its time by reading the pcNow
+  // of its machine from a timer thread every interval microseconds.  The
+  // interpreter is not slowed at all: it already stores pcNow for each
+  // instruction, and the read is unsynchronized, so a sample may see a pc a
+  // few instructions stale, which does not matter in aggregate.  Samples are
+  // reported per source line through the image's LineTable, or per pc when
+  // the image has none
+
+  private final VirtualMachine vm;
+  private final int codeLen;
+  private final long interval; // nanoseconds between samples
+  final long[] samples; // samples taken at each pc
+  long taken; // all samples, including those between instructions
+  private volatile boolean sampling = false;
+  private Thread timer;
+
+  public SamplingProfiler(VirtualMachine vm, int interval) {
+    this.vm = vm;
+    codeLen = vm.image.codeLen;
+    this.interval = Math.max(interval, 1) * 1000L;
+    samples = new long[codeLen + 1];
+  }
+
+  public void start() {
+    // Starts sampling on a daemon thread
+    sampling = true;
+    timer = new Thread(() -> {
+      while (sampling) {
+        LockSupport.parkNanos(interval);
+        int pc = vm.pcNow;
+        if (pc >= 0 && pc < codeLen)
+          samples[pc]++;
+        taken++;
+      }
+    }, "PVM sampling profiler");
+    timer.setDaemon(true);
+    timer.start();
+  }
+
+  public void stop() {
+    // Stops sampling and waits for the timer thread, so that the counts are
+    // complete when this returns
+    sampling = false;
+    try {
+      timer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public void write(String fileName) throws IOException {
+    // Writes the samples for each source line (or pc), most frequent first,
+    // with the time they represent and the text of the line if it is known
+    LineTable lines = vm.image.lines;
+    TreeMap<Integer, Long> byPlace = new TreeMap<Integer, Long>();
+    for (int pc = 0; pc < codeLen; pc++)
+      if (samples[pc] != 0)
+        byPlace.merge(lines == null ? pc : lines.line(pc), samples[pc], Long::sum);
+    ArrayList<Map.Entry<Integer, Long>> order = new ArrayList<Map.Entry<Integer, Long>>(byPlace.entrySet());
+    order.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+
+    try (PrintWriter report = new PrintWriter(new BufferedWriter(new FileWriter(fileName)))) {
+      report.printf("%d samples, one every %d us%n%n", taken, interval / 1000);
+      report.printf("  %6s %9s %9s %6s  %s%n", lines == null ? "pc" : "line", "samples", "ms", "%",
+          lines == null ? "" : "source");
+      for (Map.Entry<Integer, Long> e : order) {
+        int place = e.getKey();
+        long n = e.getValue();
+        String text = lines == null ? "" : lines.text(place);
+        report.printf("  %6d %9d %9.1f %5.1f%%  %s%n", place, n, n * interval / 1e6, 100.0 * n / taken, text);
+      }
+    }
+  }
+
+} // end SamplingProfiler
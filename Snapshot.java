@@ -0,0 +1,124 @@
+package CalcPVM;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+import library.*;
+
+class Snapshot {
+  // The state of a machine part way through a run: its registers, the words
+  // in use (the stack from sp up, then the heap up to hp; the rest of memory
+  // is zero) and how far it had read its data.  A snapshot is written to a
+  // file deflated, so long runs of zeros cost next to nothing, and may be
+  // restored into any number of machines for the same image and stack size,
+  // each of which then resumes the run from that point.  Machines that
+  // manage the heap with free lists cannot be captured, as the lists are
+  // not part of the snapshot
+
+  static final int magic = 0x534d5650; // "PVMS"
+  static final int version = 2;
+
+  final int codeLen, codeHash, stackSize; // the image and layout captured
+  final int pc, sp, fp, gp, mp, hp; // registers, pc about to execute
+  final long ops; // operations executed
+  final long dataPosition; // bytes of data read, or -1 if not known
+  final String dataName; // file they were read from, "" for the console
+  final long resultsSize; // bytes of results written, or -1 if not known
+  final int low; // address of words[0]
+  final int[] words; // memory from low up to hp
+
+  Snapshot(CodeImage image, int stackSize, Processor cpu, int pc, long ops, int[] words, int low,
+      InFile data, OutFile results) {
+    codeLen = image.codeLen;
+    codeHash = hash(image);
+    this.stackSize = stackSize;
+    this.pc = pc;
+    sp = cpu.sp;
+    fp = cpu.fp;
+    gp = cpu.gp;
+    mp = cpu.mp;
+    hp = cpu.hp;
+    this.ops = ops;
+    this.words = words;
+    this.low = low;
+    dataPosition = data instanceof DataReader ? ((DataReader) data).position() : -1;
+    dataName = data instanceof DataReader ? ((DataReader) data).name : "";
+    resultsSize = results instanceof ResultsSink ? ((ResultsSink) results).size() : -1;
+  }
+
+  private Snapshot(DataInputStream in) throws IOException {
+    if (in.readInt() != magic || in.readInt() != version)
+      throw new IOException("not a PVM snapshot");
+    codeLen = in.readInt();
+    codeHash = in.readInt();
+    stackSize = in.readInt();
+    pc = in.readInt();
+    sp = in.readInt();
+    fp = in.readInt();
+    gp = in.readInt();
+    mp = in.readInt();
+    hp = in.readInt();
+    ops = in.readLong();
+    dataPosition = in.readLong();
+    dataName = in.readUTF();
+    resultsSize = in.readLong();
+    low = in.readInt();
+    int n = in.readInt();
+    if (n < 0 || low < 0 || (long) low + n != hp)
+      throw new IOException("snapshot memory does not match its registers");
+    words = new int[n];
+    for (int i = 0; i < n; i++)
+      words[i] = in.readInt();
+  }
+
+  static int hash(CodeImage image) {
+    // Identifies the code of image, so that a snapshot is only restored into
+    // machines running the same program
+    int[] code = image.code();
+    int h = image.codeLen;
+    for (int pc = 0; pc < image.codeLen; pc++)
+      h = 31 * h + code[pc];
+    return h;
+  }
+
+  boolean fits(CodeImage image, int stackSize) {
+    // True if this may be restored into a machine for image with stackSize
+    return codeLen == image.codeLen && codeHash == hash(image) && this.stackSize == stackSize;
+  }
+
+  void position(InFile data) {
+    // Skips the data already read when the snapshot was taken, if data is
+    // the same file; any other data is read from its start
+    if (dataPosition > 0 && data instanceof DataReader && ((DataReader) data).name.equals(dataName)
+        && !dataName.equals(""))
+      ((DataReader) data).skip(dataPosition);
+  }
+
+  void write(String fileName) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new DeflaterOutputStream(new FileOutputStream(fileName)), 1 << 16))) {
+      for (int w : new int[] { magic, version, codeLen, codeHash, stackSize, pc, sp, fp, gp, mp, hp })
+        out.writeInt(w);
+      out.writeLong(ops);
+      out.writeLong(dataPosition);
+      out.writeUTF(dataName);
+      out.writeLong(resultsSize);
+      out.writeInt(low);
+      out.writeInt(words.length);
+      for (int w : words)
+        out.writeInt(w);
+    }
+  }
+
+  static Snapshot read(String fileName) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new InflaterInputStream(new FileInputStream(fileName)), 1 << 16))) {
+      return new Snapshot(in);
+    }
+  }
+
+  public String toString() {
+    return "pc " + pc + " after " + ops + " operations, " + words.length + " words in use";
+  }
+
+} // end Snapshot
@@ -0,0 +1,299 @@
+package CalcPVM;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import library.*;
+
+class BinaryTrace {
+  // Execution trace kept as fixed-width records in a memory-mapped ring
+  // file, so that tracing costs a few stores per instruction rather than a
+  // line of formatted text.  Once the ring is full the oldest records are
+  // overwritten, leaving the last capacity instructions before the run
+  // stopped.  The file is a header of headerInts ints followed by the
+  // records, all little-endian:
+  //
+  //   header: magic, version, recordInts, capacity, records written (a long)
+  //   record: ops (a long), pc, opcode, operand, sp, fp, hp, tos
+  //
+  // A long is stored as two ints, low half first.
+  //
+  // The opcode has unknownTos set when sp did not address memory.  The count
+  // of records is updated as each is written, so the file is complete even
+  // if the JVM does not shut down cleanly
+
+  static final int magic = 0x544d5650; // "PVMT"
+  static final int version = 2; // ops became a long
+  static final int headerInts = 8, recordInts = 9;
+  static final int unknownTos = 1 << 31;
+  static final int maxCapacity = (Integer.MAX_VALUE / 4 - headerInts) / recordInts;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer mapped;
+  private final IntBuffer words;
+  final int capacity; // records held
+  private long written = 0; // records written so far
+  private int next = headerInts; // index in words of the next record
+
+  public BinaryTrace(String fileName, int capacity) throws IOException {
+    // Creates (or truncates) fileName to hold the last capacity records
+    this.capacity = Math.max(1, Math.min(capacity, maxCapacity));
+    channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, 4L * (headerInts + (long) this.capacity * recordInts));
+    words = mapped.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    words.put(0, magic);
+    words.put(1, version);
+    words.put(2, recordInts);
+    words.put(3, this.capacity);
+  }
+
+  public void record(long ops, int pc, int opcode, int operand, int sp, int fp, int hp, int tos) {
+    // Appends one record, overwriting the oldest once the ring is full
+    int at = next;
+    words.put(at, (int) ops);
+    words.put(at + 1, (int) (ops >>> 32));
+    words.put(at + 2, pc);
+    words.put(at + 3, opcode);
+    words.put(at + 4, operand);
+    words.put(at + 5, sp);
+    words.put(at + 6, fp);
+    words.put(at + 7, hp);
+    words.put(at + 8, tos);
+    next = at + recordInts == words.limit() ? headerInts : at + recordInts;
+    written++;
+    words.put(4, (int) written);
+    words.put(5, (int) (written >>> 32));
+  }
+
+  static long getLong(IntBuffer r, int at) {
+    // Returns the long stored at index at of r
+    return r.get(at) & 0xffffffffL | (long) r.get(at + 1) << 32;
+  }
+
+  public void close() {
+    // Releases the mapping now; the file keeps the records
+    OffHeapMemory.release(mapped);
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // nothing more can be done
+    }
+  }
+
+} // end BinaryTrace
+
+class TraceFilter {
+  // Decides which instructions are traced, from a specification of comma
+  // separated terms, all of which must hold:
+  //
+  //   pc=a..b        pc within a .. b (pc=a for one; several terms allow any)
+  //   op=LDXA|STO    opcode is one of these
+  //   sp<n  sp>n     stack pointer below or above n
+  //   hp<n  hp>n     heap pointer below or above n
+  //   after=n        more than n operations executed
+  //   every=n        only every nth instruction otherwise selected
+  //
+  // For a run, compile() folds the pc ranges and opcodes into a table indexed
+  // by pc, since the code does not change, so that accept() costs an array
+  // load and a few comparisons.  Each run needs its own filter, as every=n
+  // counts the instructions it has seen
+
+  private final ArrayList<int[]> ranges = new ArrayList<int[]>(); // {from, to}
+  private boolean[] ops; // opcodes to trace, or null for all
+  private int spMin = Integer.MIN_VALUE, spMax = Integer.MAX_VALUE;
+  private int hpMin = Integer.MIN_VALUE, hpMax = Integer.MAX_VALUE;
+  private long after = 0;
+  private int every = 1, seen = 0;
+  private boolean[] selected; // by pc, once compiled
+
+  public TraceFilter(String spec) {
+    // Parses spec; throws IllegalArgumentException describing a bad term
+    for (String term : spec.split(",")) {
+      term = term.trim();
+      try {
+        if (term.startsWith("pc=")) {
+          String[] range = term.substring(3).split("\\.\\.");
+          int from = Integer.parseInt(range[0].trim());
+          ranges.add(new int[] { from, range.length > 1 ? Integer.parseInt(range[1].trim()) : from });
+        } else if (term.startsWith("op=")) {
+          if (ops == null)
+            ops = new boolean[PVM.nul + 1];
+          for (String m : term.substring(3).split("\\|")) {
+            int op = PVM.opCode(m.trim());
+            if (op == PVM.nul && !m.trim().equalsIgnoreCase(PVM.mnemonics[PVM.nul]))
+              throw new IllegalArgumentException("unknown opcode " + m.trim());
+            ops[op] = true;
+          }
+        } else if (term.startsWith("sp<"))
+          spMax = Integer.parseInt(term.substring(3)) - 1;
+        else if (term.startsWith("sp>"))
+          spMin = Integer.parseInt(term.substring(3)) + 1;
+        else if (term.startsWith("hp<"))
+          hpMax = Integer.parseInt(term.substring(3)) - 1;
+        else if (term.startsWith("hp>"))
+          hpMin = Integer.parseInt(term.substring(3)) + 1;
+        else if (term.startsWith("after="))
+          after = Long.parseLong(term.substring(6));
+        else if (term.startsWith("every="))
+          every = Math.max(1, Integer.parseInt(term.substring(6)));
+        else if (term.length() > 0)
+          throw new IllegalArgumentException("unknown trace condition " + term);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("bad number in " + term);
+      }
+    }
+  }
+
+  public boolean matches(int pc, int opcode) {
+    // True if the instruction at pc with opcode passes the pc and opcode terms
+    if (ops != null && (opcode < 0 || opcode > PVM.nul || !ops[opcode]))
+      return false;
+    if (ranges.isEmpty())
+      return true;
+    for (int[] r : ranges)
+      if (pc >= r[0] && pc <= r[1])
+        return true;
+    return false;
+  }
+
+  public TraceFilter compile(CodeImage image) {
+    // Prepares the table of pcs to trace in image; returns this
+    int[] code = image.code();
+    selected = new boolean[image.codeLen + 1];
+    for (int pc = 0; pc < image.codeLen; pc++)
+      selected[pc] = matches(pc, code[pc]);
+    return this;
+  }
+
+  public boolean accept(int pc, long ops, int sp, int hp) {
+    // True if the instruction at pc, about to be executed as the opsth, is
+    // to be traced (after compile)
+    return selected[pc] && accept(ops, sp, hp);
+  }
+
+  public boolean accept(long ops, int sp, int hp) {
+    // As above, for an instruction already known to match its pc and opcode
+    return ops > after && sp >= spMin && sp <= spMax && hp >= hpMin && hp <= hpMax
+        && (every == 1 || ++seen % every == 0);
+  }
+
+} // end TraceFilter
+
+public class TraceDecoder {
+  // Renders a binary trace in the text format of the emulator's trace, from
+  // the oldest record still held to the last, optionally keeping only the
+  // instructions within a range of pcs, with given opcodes, every nth, or as
+  // selected by any TraceFilter:
+  //
+  //   TraceDecoder trace [-pc from,to] [-op MNEMONIC,...] [-every n] [-if filter] [-o results]
+
+  static final String usage =
+      "Usage: TraceDecoder trace [-pc from,to] [-op MNEMONIC,...] [-every n] [-if filter] [-o results]";
+
+  static boolean hasOperand(int opcode) {
+    // True for the instructions whose operand the text trace shows
+    switch (opcode) {
+      case PVM.brn:
+      case PVM.bze:
+      case PVM.dsp:
+      case PVM.lda:
+      case PVM.ldc:
+      case PVM.prns:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  static void render(OutFile results, IntBuffer r, int at) {
+    // Writes the record at index at of r as the emulator's trace would
+    int opcode = r.get(at + 3) & ~BinaryTrace.unknownTos;
+    results.write(" PC:");
+    results.write(r.get(at + 2), 5);
+    results.write(" FP:");
+    results.write(r.get(at + 6), 5);
+    results.write(" SP:");
+    results.write(r.get(at + 5), 5);
+    results.write(" HP:");
+    results.write(r.get(at + 7), 5);
+    results.write(" TOS:");
+    if ((r.get(at + 3) & BinaryTrace.unknownTos) == 0)
+      results.write(r.get(at + 8), 5);
+    else
+      results.write(" ????");
+    results.write("  " + (opcode >= 0 && opcode <= PVM.nul ? PVM.mnemonics[opcode] : "???"), -8);
+    if (hasOperand(opcode))
+      results.write(r.get(at + 4), 7);
+    results.writeLine();
+  }
+
+  public static void main(String[] args) {
+    String traceName = null, resultsName = "";
+    StringBuilder spec = new StringBuilder();
+    PVM.init();
+    for (int i = 0; i < args.length; i++)
+      if (args[i].equals("-pc") && i + 1 < args.length)
+        spec.append(",pc=").append(args[++i].replace(",", ".."));
+      else if (args[i].equals("-op") && i + 1 < args.length)
+        spec.append(",op=").append(args[++i].replace(",", "|"));
+      else if (args[i].equals("-every") && i + 1 < args.length)
+        spec.append(",every=").append(args[++i]);
+      else if (args[i].equals("-if") && i + 1 < args.length)
+        spec.append(",").append(args[++i]);
+      else if (args[i].equals("-o") && i + 1 < args.length)
+        resultsName = args[++i];
+      else
+        traceName = args[i];
+    if (traceName == null) {
+      System.err.println(usage);
+      System.exit(1);
+    }
+    TraceFilter filter = null;
+    try {
+      filter = new TraceFilter(spec.toString());
+    } catch (IllegalArgumentException e) {
+      System.err.println("Bad filter: " + e.getMessage());
+      System.exit(1);
+    }
+
+    try (FileChannel channel = FileChannel.open(Paths.get(traceName), StandardOpenOption.READ)) {
+      IntBuffer r = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+          .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+      if (r.limit() < BinaryTrace.headerInts || r.get(0) != BinaryTrace.magic) {
+        System.err.println(traceName + " is not a PVM trace");
+        System.exit(1);
+      }
+      if (r.get(1) != BinaryTrace.version || r.get(2) != BinaryTrace.recordInts) {
+        System.err.println(traceName + " is a version " + r.get(1) + " trace; this decoder reads version "
+            + BinaryTrace.version);
+        System.exit(1);
+      }
+      int capacity = r.get(3);
+      long written = BinaryTrace.getLong(r, 4);
+      long first = Math.max(0, written - capacity);
+      ResultsSink results = new ResultsSink(resultsName);
+      if (results.openError()) {
+        System.err.println("Could not open results file " + resultsName);
+        System.exit(1);
+      }
+      long kept = 0;
+      for (long n = first; n < written; n++) {
+        int at = BinaryTrace.headerInts + (int) (n % capacity) * BinaryTrace.recordInts;
+        int pc = r.get(at + 2), opcode = r.get(at + 3) & ~BinaryTrace.unknownTos;
+        if (filter.matches(pc, opcode) && filter.accept(BinaryTrace.getLong(r, at), r.get(at + 5), r.get(at + 7))) {
+          render(results, r, at);
+          kept++;
+        }
+      }
+      results.close();
+      System.err.println(written + " instructions traced, " + (written - first) + " held, " + kept + " selected");
+    } catch (IOException | InvalidPathException e) {
+      System.err.println("Could not read trace " + traceName + ": " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
+} // end TraceDecoder
@@ -0,0 +1,911 @@
+package CalcPVM;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.util.*;
+import library.*;
+
+class CodeImage {
+  // An immutable compiled program: the code segment and the string literal
+  // segment, both apart from the memory of any machine.  Any number of
+  // machines may share one image
+
+  public final int codeLen; // words of code
+  public final int litLen; // words of zero-terminated string literals
+  private final int[] code; // code words plus a zero guard; never written
+  private final int[] literals; // never written after construction
+  private final EncodedLiterals encoded; // literals as bytes, for ResultsSink
+  public final LineTable lines; // source position of each instruction, or null
+  private final HashMap<Integer, MethodHandle> translations = new HashMap<Integer, MethodHandle>();
+  private CompactCode compact; // byte encoding, once made
+
+  public CodeImage(int[] code, int codeLen, int[] literals, int litLen) {
+    this(code, codeLen, literals, litLen, null);
+  }
+
+  public CodeImage(int[] code, int codeLen, int[] literals, int litLen, LineTable lines) {
+    // Copies the first codeLen words of code and litLen words of literals;
+    // lines, if not null, gives the source position of each instruction
+    this.codeLen = codeLen;
+    this.lines = lines;
+    this.litLen = litLen;
+    this.code = Arrays.copyOf(code, codeLen + 1);
+    this.code[codeLen] = 0;
+    this.literals = Arrays.copyOf(literals, litLen);
+    this.encoded = new EncodedLiterals(this.literals, litLen);
+  }
+
+  int[] code() {
+    // Returns the shared code words, which callers must not modify
+    return code;
+  }
+
+  int[] literals() {
+    // Returns the shared literal words, which callers must not modify
+    return literals;
+  }
+
+  EncodedLiterals encodedLiterals() {
+    return encoded;
+  }
+
+  public synchronized CompactCode compact() {
+    // Returns the code encoded a byte at a time
+    if (compact == null)
+      compact = new CompactCode(code, codeLen);
+    return compact;
+  }
+
+  public int pcOf(String where) {
+    // Returns the pc named by where, a pc or :line for the first instruction
+    // of a source line, or -1 if there is no such instruction
+    try {
+      int n = Integer.parseInt(where.startsWith(":") ? where.substring(1) : where);
+      int pc = !where.startsWith(":") ? n : lines == null ? -1 : lines.firstPC(n);
+      return pc >= 0 && pc < codeLen ? pc : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  public synchronized MethodHandle translation(int stackSize) {
+    // Returns the JVM bytecode translation for machines with stackSize words
+    // of stack, or null if there is none
+    if (!translations.containsKey(stackSize))
+      translations.put(stackSize, PVMJit.compile(code, codeLen, stackSize));
+    return translations.get(stackSize);
+  }
+
+} // end CodeImage
+
+public class VirtualMachine {
+  // One PVM: its own memory (stack and heap), registers and status, running
+  // the code of a shared CodeImage.  Machines are independent, so separate
+  // threads may run as many as they like concurrently
+
+  public final CodeImage image;
+  public int[] mem; // Simulated stack and heap, reallocated as the heap grows
+  public final OffHeapMemory offHeap; // Used instead of mem when not null
+  private int memLength; // words of memory currently addressable
+  private int[] code; // image.code(), or the debugger's copy, for fetching
+  private final int[] literals; // image.literals(), for PRNS
+  private final EncodedLiterals encoded; // image.encodedLiterals(), for PRNS
+  public final int stackSize, maxMemory; // words of stack, limit on mem.length
+  final int stackBase, heapBase; // Limits on cpu.sp
+
+  final Processor cpu = new Processor();
+  public int ps; // Program status
+  public long ops; // Operations executed by the last run
+  public int pcNow; // Program counter of the last instruction executed
+
+  // Execution tier, initially as set for PVM
+
+  public boolean useJit = PVM.useJit;
+  public boolean tiered = PVM.tiered;
+  public int backEdgeLimit = PVM.backEdgeLimit;
+  public int blockLimit = PVM.blockLimit;
+  public boolean compact = PVM.compactCode; // interpret the image's CompactCode
+
+  // Limits on each run, initially as set for PVM, and those of the last run
+
+  public long maxSteps = PVM.maxSteps;
+  public int timeLimit = PVM.timeLimit;
+  public int maxHeap = PVM.maxHeap;
+  public RunLimits limits;
+  private int memoryLimit; // maxMemory, or less if the heap is limited
+
+  // Profiling, initially as set for PVM, and the counts for the last run
+
+  public String profileName = PVM.profileName; // run() writes .prof and .folded, if not null
+  public Profiler profiler; // null unless profiling
+  public String sampleName = PVM.sampleName; // run() writes .samples, if not null
+  public int sampleInterval = PVM.sampleInterval; // microseconds between samples
+  public SamplingProfiler sampler; // null unless sampling
+
+  // Binary tracing, initially as set for PVM
+
+  public String traceName = PVM.traceName; // ring file traced to, if not null
+  public int traceRecords = PVM.traceRecords; // instructions it holds
+  public String traceIf = PVM.traceIf; // TraceFilter for either trace, if not null
+
+  // Debugging, initially as set for PVM
+
+  public String breakpoints = PVM.breakpoints; // run under a Debugger, if not null
+  public Debugger debugger; // null unless debugging
+
+  // Snapshots, initially as set for PVM, and the one saved by the last run
+
+  public String snapshotName = PVM.snapshotName; // file a run is saved to, if not null
+  public String snapshotAt = PVM.snapshotAt; // pc or :line to save at; if null, when a limit stops it
+  public Snapshot saved; // null unless saved
+  private Snapshot resumeFrom; // set by restore() for the next run
+
+  // Tier statistics for the last run
+
+  public int tierUps; // number of transitions to compiled code
+  public int tierUpPC = -1; // block at which compiled code was entered
+  public long interpretedOps; // operations executed by the interpreter
+  public long compileTime; // nanoseconds spent translating
+
+  // Heap management, initially as set for PVM, and its state for the last run
+
+  public boolean freeList = PVM.freeList;
+  public boolean checkFreed = PVM.checkFreed;
+  public HeapCollector collector = new HeapCollector();
+  public FreeListHeap heap; // null unless freeList
+  private final WordArray array = new WordArray(null);
+  private byte[] bytes; // the CompactCode being interpreted, if any
+
+  public VirtualMachine(CodeImage image) {
+    this(image, PVM.stackSize, PVM.heapSize, PVM.maxMemory, PVM.offHeap, PVM.memoryFile);
+  }
+
+  public VirtualMachine(CodeImage image, int stackSize, int heapSize, int maxMemory) {
+    this(image, stackSize, heapSize, maxMemory, false, null);
+  }
+
+  public VirtualMachine(CodeImage image, int stackSize, int heapSize, int maxMemory,
+      boolean external, String memoryFile) {
+    // A machine whose stack occupies words 1 .. stackSize and whose heap starts
+    // with heapSize words above it.  The words are held in mem, or off the
+    // Java heap (mapped to memoryFile if that is not null) if external is set
+    this.image = image;
+    this.code = image.code();
+    this.literals = image.literals();
+    this.encoded = image.encodedLiterals();
+    this.stackSize = stackSize;
+    this.maxMemory = Math.min(PVM.refTag, Math.max(maxMemory, stackSize + 1 + heapSize));
+    memoryLimit = this.maxMemory;
+    stackBase = stackSize + 1;
+    heapBase = stackBase;
+    if (external) {
+      offHeap = new OffHeapMemory(stackBase + heapSize, memoryFile);
+      memLength = offHeap.length();
+    } else {
+      offHeap = null;
+      mem = new int[stackBase + heapSize];
+      memLength = mem.length;
+    }
+    cpu.hp = heapBase;
+  }
+
+  public void close() {
+    // Releases off-heap memory now; the machine must not be run again
+    if (offHeap != null)
+      offHeap.free();
+  }
+
+  int load(int adr) {
+    // Returns the word at address adr
+    return offHeap == null ? mem[adr] : offHeap.get(adr);
+  }
+
+  void store(int adr, int value) {
+    // Sets the word at address adr to value
+    if (offHeap == null)
+      mem[adr] = value;
+    else
+      offHeap.set(adr, value);
+  }
+
+  void stackDump(OutFile results, int pcNow) {
+    // Dump local variable and stack area - useful for debugging
+    int[] words = offHeap == null ? mem : offHeap.copy(Math.max(cpu.sp, 0), stackBase);
+    PVMRuntime.stackDump(results, words, pcNow, cpu.fp, cpu.sp, stackBase);
+  }
+
+  void trace(OutFile results, int pcNow, boolean traceStack, boolean traceHeap) {
+    // Simple trace facility for run time debugging
+    if (traceStack)
+      stackDump(results, pcNow);
+
+    results.write(" PC:");
+    results.write(pcNow, 5);
+    results.write(" FP:");
+    results.write(cpu.fp, 5);
+    results.write(" SP:");
+    results.write(cpu.sp, 5);
+    results.write(" HP:");
+    results.write(cpu.hp, 5);
+    results.write(" TOS:");
+    if (cpu.sp >= 0 && cpu.sp < memLength)
+      results.write(load(cpu.sp), 5);
+    else
+      results.write(" ????");
+    results.write("  " + PVM.mnemonics[cpu.ir], -8);
+    switch (cpu.ir) {
+      case PVM.brn:
+      case PVM.bze:
+      case PVM.dsp:
+      case PVM.lda:
+      case PVM.ldc:
+      case PVM.prns:
+        results.write(code[cpu.pc], 7);
+        break;
+      default:
+        break;
+    }
+    results.writeLine();
+  }
+
+  void trace(BinaryTrace ring, int pcNow) {
+    // Records the instruction at pcNow, just fetched, in a binary trace
+    boolean known = cpu.sp >= 0 && cpu.sp < memLength;
+    ring.record(ops, pcNow, known ? cpu.ir : cpu.ir | BinaryTrace.unknownTos, code[cpu.pc],
+        cpu.sp, cpu.fp, cpu.hp, known ? load(cpu.sp) : 0);
+  }
+
+  void postMortem(OutFile results, int pcNow) {
+    // Reports run time error and position
+    PVMRuntime.postMortem(results, ps, pcNow, image.lines == null ? "" : image.lines.position(pcNow));
+  }
+
+  // The interpreters and utility methods
+
+  int next() {
+    // Fetches next word of program from the shared code and bumps program counter;
+    // in compact code, the next opcode byte
+    return bytes == null ? code[cpu.pc++] : bytes[cpu.pc++] & 0xff;
+  }
+
+  void push(int value) {
+    // Bumps stack pointer and pushes value onto stack
+    store(--cpu.sp, value);
+    if (cpu.sp < 1)
+      ps = PVM.badMem;
+  }
+
+  int pop() {
+    // Pops and returns top value on stack and bumps stack pointer
+    if (cpu.sp == cpu.fp)
+      ps = PVM.badMem;
+    return load(cpu.sp++);
+  }
+
+  boolean inBounds(int p) {
+    // Check that memory pointer p does not go out of bounds. This should not
+    // happen with correct code, but it is just as well to check
+    if (p < 1 || p >= memLength)
+      ps = PVM.badMem;
+    return (ps == PVM.running);
+  }
+
+  Words words() {
+    // Returns the memory for the collector and allocator
+    if (offHeap != null)
+      return offHeap;
+    array.mem = mem;
+    return array;
+  }
+
+  int allocate(int size) {
+    // Returns a reference to a new array of size elements, collecting garbage
+    // if need be, or 0 if there is no room for it
+    if (size <= 0)
+      return 0;
+    if (heap != null) {
+      int adr = heap.allocate(words(), size, Math.min(memLength, memoryLimit));
+      if (adr == 0 && extend(FreeListHeap.need(size)))
+        adr = heap.allocate(words(), size, Math.min(memLength, memoryLimit));
+      cpu.hp = heap.top;
+      return adr == 0 ? 0 : adr | PVM.refTag;
+    }
+    if (!extend(size + 1)) { // use a hole left by the last collection, or collect
+      int adr = collector.reuse(words(), size);
+      if (adr != 0)
+        return adr | PVM.refTag;
+      cpu.hp = collector.collect(words(), cpu.sp, stackBase, heapBase, cpu.hp);
+      if (!extend(size + 1)) {
+        adr = collector.reuse(words(), size);
+        return adr == 0 ? 0 : adr | PVM.refTag;
+      }
+    }
+    int adr = cpu.hp;
+    store(adr, size);
+    cpu.hp += size + 1;
+    return adr | PVM.refTag;
+  }
+
+  int release(int ref) {
+    // Frees the array with reference ref (not null); returns the new status.
+    // Without a free-list heap this is left to the collector
+    if (heap == null)
+      return PVMRuntime.isArray(ref, heapBase, cpu.hp) ? ps : PVM.badMem;
+    int status = heap.free(words(), ref);
+    cpu.hp = heap.top;
+    return status;
+  }
+
+  boolean extend(int n) {
+    // Extends memory for n more words above cpu.hp if there is room to do so
+    if ((long) cpu.hp + n > memoryLimit)
+      return false;
+    if (offHeap != null) {
+      if (!offHeap.ensure(cpu.hp + n))
+        return false;
+      memLength = offHeap.length();
+      return true;
+    }
+    int[] room = PVMRuntime.grow(mem, cpu.hp, n, memoryLimit);
+    if (room == null)
+      return false;
+    mem = room;
+    memLength = mem.length;
+    return true;
+  }
+
+  public Snapshot snapshot(int pc, InFile data, OutFile results) {
+    // Captures the run as it is about to execute the instruction at pc, with
+    // the words from cpu.sp to cpu.hp and the data read so far
+    if (heap != null)
+      throw new IllegalStateException("a heap with free lists cannot be saved");
+    if (results instanceof ResultsSink)
+      ((ResultsSink) results).sync();
+    int low = Math.max(1, Math.min(cpu.sp, stackBase));
+    int[] words = new int[cpu.hp - low];
+    if (offHeap == null)
+      System.arraycopy(mem, low, words, 0, words.length);
+    else
+      for (int adr = low; adr < cpu.hp; adr++)
+        words[adr - low] = offHeap.get(adr);
+    return new Snapshot(image, stackSize, cpu, pc, ops, words, low, data, results);
+  }
+
+  public void restore(Snapshot s) {
+    // Arranges for the next run to resume from s rather than start afresh.
+    // s stays untouched, so any number of machines may be restored from it
+    if (!s.fits(image, stackSize))
+      throw new IllegalArgumentException("the snapshot is of another program or stack size");
+    if (freeList)
+      throw new IllegalArgumentException("a heap with free lists cannot be restored");
+    resumeFrom = s;
+  }
+
+  private int resume(Snapshot s, InFile data) {
+    // Loads the registers and memory of s and skips the data it had read;
+    // returns the status to run with
+    if (!extend(s.hp - heapBase))
+      return limits.exhausted();
+    if (offHeap == null)
+      System.arraycopy(s.words, 0, mem, s.low, s.words.length);
+    else
+      for (int i = 0; i < s.words.length; i++)
+        offHeap.set(s.low + i, s.words[i]);
+    cpu.sp = s.sp;
+    cpu.fp = s.fp;
+    cpu.gp = s.gp;
+    cpu.mp = s.mp;
+    cpu.hp = s.hp;
+    cpu.pc = s.pc;
+    pcNow = s.pc;
+    ops = s.ops;
+    s.position(data);
+    return PVM.running;
+  }
+
+  private void save(int pc, InFile data, OutFile results) {
+    // Writes a snapshot of the run at pc to snapshotName
+    try {
+      saved = snapshot(pc, data, results);
+      saved.write(snapshotName);
+    } catch (IOException | IllegalStateException e) {
+      saved = null;
+      System.err.println("Could not save snapshot " + snapshotName + ": " + e.getMessage());
+    }
+  }
+
+  boolean isHot(int[] hotness, int pcNow, int target) {
+    // Counts a taken branch from pcNow to target; true once target is hot
+    hotness[target]++;
+    return hotness[target] >= (target <= pcNow ? backEdgeLimit : blockLimit);
+  }
+
+  MethodHandle compileCode() {
+    // Returns the image's JVM bytecode translation, timing the translation
+    long start = System.nanoTime();
+    MethodHandle code = image.translation(stackSize);
+    compileTime += System.nanoTime() - start;
+    return code;
+  }
+
+  JitFrame enterCode(MethodHandle code, long ops, InFile data, OutFile results) {
+    // Continues execution at cpu.pc in compiled code until ps changes, then
+    // copies the registers back
+    JitFrame f = new JitFrame();
+    f.sp = cpu.sp;
+    f.hp = cpu.hp;
+    f.pc = cpu.pc;
+    f.ps = ps;
+    f.ops = ops;
+    f.fp = cpu.fp;
+    f.stackBase = stackBase;
+    f.mem = mem;
+    f.literals = literals;
+    f.encoded = encoded;
+    f.maxMemory = memoryLimit;
+    f.gc = collector;
+    f.heap = heap;
+    f.limits = limits;
+    f.due = limits.due(ops);
+    f.data = data;
+    f.results = results;
+    PVMJit.run(code, f);
+    cpu.sp = f.sp;
+    cpu.hp = f.hp;
+    cpu.pc = f.pc;
+    ps = f.ps;
+    mem = f.mem;
+    memLength = mem.length;
+    return f;
+  }
+
+  void tierReport() {
+    // Reports where and when execution moved to compiled code
+    if (tierUps == 0)
+      System.out.println("Interpreted only (no region reached the tier-up threshold)");
+    else
+      System.out.println("Tier-up to JVM bytecode at " + tierUpPC + " after " + interpretedOps
+          + " operations (translated in " + compileTime / 1000 + " us); "
+          + (ops - interpretedOps) + " operations compiled");
+  }
+
+  public int execute(int initPC, InFile data, OutFile results,
+      boolean tracing, boolean traceStack, boolean traceHeap) {
+    // Emulates action of the codeLen instructions of the image, with program
+    // counter initialized to initPC and stack pointer to stackBase.
+    // data and results are used for I/O. Tracing at the code level may be
+    // requested.  Returns the final status; ops and pcNow are left for
+    // report.  If compact is set and nothing needs the int form, the same
+    // loop runs the image's CompactCode, with pcs as byte offsets in it
+    // until the run stops
+
+    int codeLen = image.codeLen;
+    ResultsSink sink = results instanceof ResultsSink ? (ResultsSink) results : null;
+    Snapshot resume = resumeFrom;
+    resumeFrom = null;
+    if (offHeap == null) // clear what any previous run used
+      Arrays.fill(mem, 0, cpu.hp, 0);
+    else
+      offHeap.clear(0, cpu.hp);
+    int loop; // internal loops
+    int tos, sos; // value popped from stack
+    int adr; // effective address for memory accesses
+    cpu.hp = heapBase; // initialize registers
+    cpu.sp = stackBase;
+    cpu.gp = stackBase;
+    cpu.mp = stackBase;
+    cpu.fp = stackBase;
+    cpu.pc = initPC; // initialize program counter
+    pcNow = initPC;
+    ps = PVM.running; // prepare to execute
+    ops = 0;
+
+    int[] hotness = null; // taken branch counts per target when tiered
+    boolean tierUp = false;
+    tierUps = 0;
+    tierUpPC = -1;
+    compileTime = 0;
+    collector = new HeapCollector();
+    heap = freeList ? new FreeListHeap(heapBase, checkFreed) : null;
+    limits = new RunLimits(maxSteps, timeLimit, maxHeap);
+    memoryLimit = limits.heapLimit(heapBase, maxMemory);
+    saved = null;
+    if (resume != null && (ps = resume(resume, data)) != PVM.running)
+      return ps;
+    profiler = profileName != null ? new Profiler(image) : null;
+    long[] counts = profiler != null ? profiler.counts : null;
+    sampler = sampleName != null ? new SamplingProfiler(this, sampleInterval) : null;
+    BinaryTrace ring = null;
+    if (traceName != null)
+      try {
+        ring = new BinaryTrace(traceName, traceRecords);
+      } catch (IOException | RuntimeException e) {
+        System.err.println("Could not open trace file " + traceName + ": " + e.getMessage());
+      }
+    TraceFilter filter = traceIf != null ? new TraceFilter(traceIf).compile(image) : null;
+    debugger = breakpoints != null ? new Debugger(this, breakpoints, cpu.pc) : null;
+    code = debugger != null ? debugger.code : image.code();
+    int savePC = snapshotName == null || snapshotAt == null || debugger != null ? -1 : image.pcOf(snapshotAt);
+    if (savePC >= 0) {
+      code = Arrays.copyOf(code, code.length);
+      code[savePC] = PVM.brk; // stop there to save the run
+    }
+    if (offHeap != null || checkFreed && freeList || profiler != null || sampler != null || ring != null
+        || debugger != null || snapshotName != null)
+      ; // compiled code works on mem only and does not check, count, trace or stop, so interpret
+    else if ((tiered || useJit && resume != null) && !tracing)
+      hotness = new int[codeLen]; // compiled code is entered at the start of a block
+    else if (useJit && !tracing) {
+      MethodHandle code = compileCode();
+      if (code != null) {
+        JitFrame f = enterCode(code, ops, data, results);
+        ops = f.ops;
+        pcNow = f.pc;
+        if (sink != null)
+          sink.sync();
+        return ps;
+      }
+    }
+
+    CompactCode compactCode = null; // when nothing needs the int form, pcs are byte offsets in it
+    if (compact && hotness == null && !tracing && profiler == null && sampler == null && ring == null
+        && debugger == null && snapshotName == null) {
+      compactCode = image.compact();
+      bytes = compactCode.bytes;
+      codeLen = compactCode.length;
+      cpu.pc = compactCode.at(cpu.pc);
+    }
+
+    if (sampler != null)
+      sampler.start();
+    do {
+      ops++;
+      pcNow = cpu.pc; // retain for tracing/postmortem/sampling
+      if (cpu.pc < 0 || cpu.pc >= codeLen) {
+        ps = PVM.badAdr;
+        break;
+      }
+      cpu.ir = next(); // fetch
+      if (counts != null)
+        counts[pcNow]++;
+      if ((tracing || ring != null) && (filter == null || filter.accept(pcNow, ops, cpu.sp, cpu.hp))) {
+        if (ring != null)
+          trace(ring, pcNow);
+        if (tracing)
+          trace(results, pcNow, traceStack, traceHeap);
+      }
+      switch (cpu.ir) { // execute
+        case PVM.nop: // no operation
+          break;
+        case PVM.dsp: // decrement stack pointer (allocate space for variables)
+          int localSpace = operand();
+          cpu.sp -= localSpace;
+          if (inBounds(cpu.sp)) // initialize
+            for (loop = 0; loop < localSpace; loop++)
+              store(cpu.sp + loop, 0);
+          break;
+        case PVM.ldc: // push constant value
+          push(operand());
+          break;
+        case PVM.lda: // push local address
+          adr = cpu.fp - 1 - operand();
+          if (inBounds(adr))
+            push(adr);
+          break;
+        case PVM.ldv: // dereference
+          push(load(pop() & PVM.addrMask));
+          break;
+        case PVM.sto: // store
+          tos = pop();
+          adr = pop() & PVM.addrMask;
+          if (inBounds(adr))
+            store(adr, tos);
+          break;
+        case PVM.ldxa: // heap array indexing
+          adr = pop();
+          int heapPtr = pop(), base = heapPtr & PVM.addrMask;
+          if (heapPtr == 0)
+            ps = PVM.nullRef;
+          else if ((heapPtr & ~PVM.addrMask) != PVM.refTag || base < heapBase || base >= cpu.hp)
+            ps = PVM.badMem;
+          else if (heap != null && heap.checked() && !heap.isLive(base))
+            ps = PVM.freed;
+          else if (adr < 0 || adr >= load(base))
+            ps = PVM.badInd;
+          else
+            push(heapPtr + adr + 1); // still tagged
+          break;
+        case PVM.inpi: // integer input
+          adr = pop() & PVM.addrMask;
+          if (sink != null)
+            sink.prompt();
+          if (inBounds(adr)) {
+            store(adr, data.readInt());
+            if (data.error())
+              ps = PVM.badData;
+          }
+          break;
+        case PVM.prni: // integer output
+          if (tracing)
+            results.write(PVM.padding);
+          results.write(pop(), 0);
+          if (tracing)
+            results.writeLine();
+          break;
+        case PVM.inpb: // boolean input
+          adr = pop() & PVM.addrMask;
+          if (sink != null)
+            sink.prompt();
+          if (inBounds(adr)) {
+            store(adr, data.readBoolean() ? 1 : 0);
+            if (data.error())
+              ps = PVM.badData;
+          }
+          break;
+        case PVM.prnb: // boolean output
+          if (tracing)
+            results.write(PVM.padding);
+          if (pop() != 0)
+            results.write(" true  ");
+          else
+            results.write(" false ");
+          if (tracing)
+            results.writeLine();
+          break;
+        case PVM.prns: // string output
+          if (tracing)
+            results.write(PVM.padding);
+          loop = operand();
+          if (sink != null) {
+            if (!sink.writeLiteral(encoded, loop))
+              ps = PVM.badMem;
+          } else if (loop < 0 || loop >= literals.length)
+            ps = PVM.badMem;
+          while (sink == null && ps == PVM.running && literals[loop] != 0) {
+            results.write((char) literals[loop]);
+            loop++;
+            if (loop >= literals.length)
+              ps = PVM.badMem;
+          }
+          if (tracing)
+            results.writeLine();
+          break;
+        case PVM.prnl: // newline
+          results.writeLine();
+          break;
+        case PVM.neg: // integer negation
+          push(-pop());
+          break;
+        case PVM.add: // integer addition
+          tos = pop();
+          push(pop() + tos);
+          break;
+        case PVM.sub: // integer subtraction
+          tos = pop();
+          push(pop() - tos);
+          break;
+        case PVM.mul: // integer multiplication
+          tos = pop();
+          sos = pop();
+          if (tos != 0 && Math.abs(sos) > PVM.maxInt / Math.abs(tos))
+            ps = PVM.badVal;
+          else
+            push(sos * tos);
+          break;
+        case PVM.div: // integer division (quotient)
+          tos = pop();
+          if (tos == 0)
+            ps = PVM.divZero;
+          else
+            push(pop() / tos);
+          break;
+        case PVM.rem: // integer division (remainder)
+          tos = pop();
+          if (tos == 0)
+            ps = PVM.divZero;
+          else
+            push(pop() % tos);
+          break;
+        case PVM.not: // logical negation
+          push(pop() == 0 ? 1 : 0);
+          break;
+        case PVM.and: // logical and
+          tos = pop();
+          push(pop() & tos);
+          break;
+        case PVM.or: // logical or
+          tos = pop();
+          push(pop() | tos);
+          break;
+        case PVM.ceq: // logical equality
+          tos = pop();
+          push(pop() == tos ? 1 : 0);
+          break;
+        case PVM.cne: // logical inequality
+          tos = pop();
+          push(pop() != tos ? 1 : 0);
+          break;
+        case PVM.clt: // logical less
+          tos = pop();
+          push(pop() < tos ? 1 : 0);
+          break;
+        case PVM.cle: // logical less or equal
+          tos = pop();
+          push(pop() <= tos ? 1 : 0);
+          break;
+        case PVM.cgt: // logical greater
+          tos = pop();
+          push(pop() > tos ? 1 : 0);
+          break;
+        case PVM.cge: // logical greater or equal
+          tos = pop();
+          push(pop() >= tos ? 1 : 0);
+          break;
+        case PVM.brn: // unconditional branch
+          cpu.pc = operand();
+          if (cpu.pc < 0 || cpu.pc >= codeLen)
+            ps = PVM.badAdr;
+          else if (cpu.pc <= pcNow && ops >= limits.budget)
+            ps = limits.check(ops);
+          if (hotness != null && ps == PVM.running)
+            tierUp = isHot(hotness, pcNow, cpu.pc);
+          break;
+        case PVM.bze: // pop top of stack, branch if false
+          int target = operand();
+          if (pop() == 0) {
+            cpu.pc = target;
+            if (cpu.pc < 0 || cpu.pc >= codeLen)
+              ps = PVM.badAdr;
+            else if (cpu.pc <= pcNow && ops >= limits.budget)
+              ps = limits.check(ops);
+            if (hotness != null && ps == PVM.running)
+              tierUp = isHot(hotness, pcNow, cpu.pc);
+          }
+          break;
+        case PVM.anew: // heap array allocation
+          adr = allocate(pop());
+          if (adr == 0)
+            ps = limits.exhausted();
+          else
+            push(adr);
+          break;
+        case PVM.free: // heap array release
+          tos = pop();
+          if (tos != 0)
+            ps = release(tos);
+          break;
+        case PVM.halt: // halt
+          ps = PVM.finished;
+          break;
+        case PVM.stk: // stack dump (debugging)
+          stackDump(results, compactCode == null ? pcNow : compactCode.pc(pcNow));
+          break;
+        case PVM.brk: // breakpoint (debugging, snapshots)
+          if (pcNow == savePC) {
+            ops--; // not counted
+            save(pcNow, data, results);
+            code[pcNow] = image.code()[pcNow]; // once only
+            savePC = -1;
+            cpu.pc = pcNow;
+          } else if (debugger == null)
+            ps = PVM.badOp;
+          else {
+            ops--;
+            debugger.stop(pcNow, data, results); // puts back the instruction at pcNow
+            cpu.pc = pcNow;
+          }
+          break;
+        case PVM.ldl: // push local value
+          adr = cpu.fp - 1 - operand();
+          if (inBounds(adr))
+            push(load(adr));
+          break;
+        case PVM.stl: // store local value
+          adr = cpu.fp - 1 - operand();
+          if (inBounds(adr))
+            store(adr, pop());
+          break;
+        case PVM.inc: // ++
+          adr = pop() & PVM.addrMask;
+          if (inBounds(adr))
+            store(adr, load(adr) + 1);
+          break;
+        case PVM.dec: // --
+          adr = pop() & PVM.addrMask;
+          if (inBounds(adr))
+            store(adr, load(adr) - 1);
+          break;
+
+        default: // unrecognized opcode
+          ps = PVM.badOp;
+          break;
+      }
+      if (tierUp && ps == PVM.running) { // on-stack replacement at block cpu.pc
+        tierUp = false;
+        MethodHandle code = compileCode();
+        if (code == null)
+          hotness = null; // untranslatable - stay in the interpreter
+        else {
+          interpretedOps = ops;
+          tierUps++;
+          tierUpPC = cpu.pc;
+          JitFrame f = enterCode(code, ops, data, results);
+          ops = f.ops;
+          pcNow = f.pc;
+        }
+      }
+    } while (ps == PVM.running);
+
+    if (compactCode != null) { // back to word pcs
+      pcNow = compactCode.pc(pcNow);
+      cpu.pc = cpu.pc >= 0 && cpu.pc <= codeLen ? compactCode.pc(cpu.pc) : cpu.pc;
+      bytes = null;
+    }
+    if (sampler != null)
+      sampler.stop();
+    if (ring != null)
+      ring.close();
+    if (snapshotName != null && snapshotAt == null && (ps == PVM.stepLimit || ps == PVM.timeOut))
+      save(cpu.pc, data, results); // to be resumed with a larger limit
+    if (tierUps == 0)
+      interpretedOps = ops;
+    if (sink != null)
+      sink.sync();
+    return ps;
+  }
+
+  private int operand() {
+    // Fetches the operand at cpu.pc and moves past it: the next word of code,
+    // or the varint that follows an opcode in compact code
+    if (bytes == null)
+      return code[cpu.pc++];
+    int b = bytes[cpu.pc++];
+    return b >= 0 ? b >>> 1 ^ -(b & 1) : longOperand(b);
+  }
+
+  private int longOperand(int b) {
+    // As above, for operands of more than one byte, b being the first
+    int z = b & 0x7f;
+    for (int shift = 7; b < 0; shift += 7) {
+      b = bytes[cpu.pc++];
+      z |= (b & 0x7f) << shift;
+    }
+    return z >>> 1 ^ -(z & 1);
+  }
+
+  public int run(int initPC, InFile data, OutFile results,
+      boolean tracing, boolean traceStack, boolean traceHeap) {
+    // Executes as above, then reports the operation count and any run time
+    // error in the way PVM.emulator always has
+    execute(initPC, data, results, tracing, traceStack, traceHeap);
+    System.out.println("\n\n" + ops + " operations. ");
+    if (tiered && !tracing)
+      tierReport();
+    if (collector.collections > 0)
+      System.out.println(collector.report());
+    if (heap != null)
+      System.out.println(heap.report());
+    if (profiler != null)
+      try {
+        profiler.write(profileName + ".prof", profileName + ".folded");
+        System.out.println("Profile written to " + profileName + ".prof and .folded");
+      } catch (IOException e) {
+        System.err.println("Could not write profile " + profileName + ".prof: " + e.getMessage());
+      }
+    if (sampler != null)
+      try {
+        sampler.write(sampleName + ".samples");
+        System.out.println("Samples written to " + sampleName + ".samples");
+      } catch (IOException e) {
+        System.err.println("Could not write samples " + sampleName + ".samples: " + e.getMessage());
+      }
+    if (saved != null)
+      System.out.println("Snapshot written to " + snapshotName + " at " + saved);
+    if (ps != PVM.finished)
+      postMortem(results, pcNow);
+    if (results instanceof ResultsSink)
+      ((ResultsSink) results).sync();
+    return ps;
+  }
+
+} // end VirtualMachine
@@ -0,0 +1,29 @@
+#!/bin/sh
+# Runs each regress/*.cod listing in the interpreter and with -j, -o, -z and
+# -t, and compares what it prints with the .out file beside it.  The
+# listing's "; args:" line gives the rest of its command line.
+#
+#   regress/run.sh [classpath]
+#
+# Exits with status 1 if any run differs.
+
+cd "$(dirname "$0")/.." || exit 2
+cp=${1:-.}
+failed=0
+for cod in regress/*.cod; do
+  args=$(sed -n 's/^; args: *//p' "$cod" | tr -d '\r')
+  want=$(tr -d '\r' < "${cod%.cod}.out")
+  for mode in "" -j -o -z -t; do
+    # the results follow the compiler's banner up to the first blank line
+    got=$(java -cp "$cp" CalcPVM.CalcPVM "$cod" $mode $args < /dev/null 2>&1 |
+      tr -d '\r' | sed -n '2,/^$/p' | sed '/^$/d')
+    if [ "$got" = "$want" ]; then
+      echo "ok      $cod $mode"
+    else
+      echo "FAILED  $cod $mode"
+      echo "$got" | sed 's/^/    /'
+      failed=1
+    fi
+  done
+done
+exit $failed